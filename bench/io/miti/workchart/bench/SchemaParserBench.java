@@ -0,0 +1,285 @@
+package io.miti.workchart.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import io.miti.workchart.model.Node;
+import io.miti.workchart.util.SchemaParser;
+
+/**
+ * Measure the time and memory allocated to parse a large schema file.
+ * A file with 50,000 nodes is generated, then parsed with the streaming
+ * SchemaParser and with a SAX handler like the one it replaced, which
+ * built a string for each piece of text and copied each node.
+ *
+ * Run with "ant bench".  The arguments are the number of nodes and the
+ * number of timed runs.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class SchemaParserBench
+{
+  /** The number of nodes in each environment. */
+  private static final int NODES_PER_SCHEMA = 50;
+
+  /** The number of untimed runs before measuring. */
+  private static final int WARMUP_RUNS = 5;
+
+
+  /**
+   * A parser that parses the schema file once.
+   */
+  private interface Parser
+  {
+    List<Node> parse(final InputStream is) throws Exception;
+  }
+
+
+  /**
+   * The SAX handler used before the streaming parser, for comparison.
+   */
+  private static final class SaxHandler extends DefaultHandler
+  {
+    private final List<Node> nodes = new ArrayList<Node>(100);
+    private final Node node = new Node();
+    private String schema = null;
+    private String element = null;
+
+
+    @Override
+    public void startElement(final String uri, final String localName,
+                             final String qName, final Attributes attributes)
+    {
+      if (qName.equalsIgnoreCase("schema"))
+      {
+        schema = attributes.getValue("id");
+      }
+      else if (qName.equalsIgnoreCase("node"))
+      {
+        node.setSchema(schema);
+        node.setNode(attributes.getValue("id"));
+      }
+
+      element = qName;
+    }
+
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName)
+    {
+      if (qName.equalsIgnoreCase("node"))
+      {
+        nodes.add(new Node(node));
+      }
+
+      element = null;
+    }
+
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length)
+    {
+      if (element == null)
+      {
+        return;
+      }
+
+      final String value = new String(ch, start, length).trim();
+      if (element.equalsIgnoreCase("url"))
+      {
+        node.setUrl(value);
+      }
+      else if (element.equalsIgnoreCase("id"))
+      {
+        node.setId(value);
+      }
+      else if (element.equalsIgnoreCase("pw"))
+      {
+        node.setPw(value);
+      }
+    }
+  }
+
+
+  private SchemaParserBench()
+  {
+    super();
+  }
+
+
+  /**
+   * Entry point to the application.
+   *
+   * @param args the number of nodes, and the number of timed runs
+   * @throws Exception if the file can't be written or parsed
+   */
+  public static void main(final String[] args) throws Exception
+  {
+    final int nodeCount = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+    final int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+    final File file = File.createTempFile("schema-bench", ".xml");
+    file.deleteOnExit();
+    writeFile(file, nodeCount);
+    System.out.println(String.format("%d nodes, %,d bytes, %d runs", nodeCount, file.length(), runs));
+
+    final Parser stax = new Parser()
+    {
+      @Override
+      public List<Node> parse(final InputStream is)
+      {
+        return new SchemaParser().getSchemas(is);
+      }
+    };
+
+    final Parser sax = new Parser()
+    {
+      @Override
+      public List<Node> parse(final InputStream is) throws Exception
+      {
+        final SaxHandler handler = new SaxHandler();
+        SAXParserFactory.newInstance().newSAXParser().parse(is, handler);
+        return handler.nodes;
+      }
+    };
+
+    measure("StAX", stax, file, nodeCount, runs);
+    measure("SAX", sax, file, nodeCount, runs);
+  }
+
+
+  /**
+   * Parse the file repeatedly and print the average time and allocation.
+   *
+   * @param name the name of the parser
+   * @param parser the parser
+   * @param file the file
+   * @param nodeCount the expected number of nodes
+   * @param runs the number of timed runs
+   * @throws Exception if the file can't be parsed
+   */
+  private static void measure(final String name, final Parser parser, final File file,
+                              final int nodeCount, final int runs) throws Exception
+  {
+    for (int i = 0; i < WARMUP_RUNS; ++i)
+    {
+      parse(parser, file, nodeCount);
+    }
+
+    final long startBytes = getAllocatedBytes();
+    final long start = System.nanoTime();
+    for (int i = 0; i < runs; ++i)
+    {
+      parse(parser, file, nodeCount);
+    }
+
+    final long millis = (System.nanoTime() - start) / 1000000L / runs;
+    final long bytes = getAllocatedBytes();
+    System.out.println(String.format("%-5s %5d ms/parse  %s", name, millis,
+        ((bytes < 0L) || (startBytes < 0L)) ? "allocation not available"
+          : String.format("%,d bytes allocated/parse", (bytes - startBytes) / runs)));
+  }
+
+
+  /**
+   * Parse the file once.
+   *
+   * @param parser the parser
+   * @param file the file
+   * @param nodeCount the expected number of nodes
+   * @throws Exception if the file can't be parsed
+   */
+  private static void parse(final Parser parser, final File file, final int nodeCount)
+    throws Exception
+  {
+    final InputStream is = new BufferedInputStream(new FileInputStream(file));
+    try
+    {
+      final List<Node> nodes = parser.parse(is);
+      if ((nodes == null) || (nodes.size() != nodeCount))
+      {
+        throw new IllegalStateException("Expected " + nodeCount + " nodes, found "
+            + ((nodes == null) ? "none" : Integer.toString(nodes.size())));
+      }
+    }
+    finally
+    {
+      is.close();
+    }
+  }
+
+
+  /**
+   * Return the bytes allocated by this thread, if the JVM reports it.
+   *
+   * @return the bytes allocated, or -1
+   */
+  private static long getAllocatedBytes()
+  {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+    {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+          Thread.currentThread().getId());
+    }
+
+    return -1L;
+  }
+
+
+  /**
+   * Write a schema file.
+   *
+   * @param file the file
+   * @param nodeCount the number of nodes
+   * @throws IOException if the file can't be written
+   */
+  private static void writeFile(final File file, final int nodeCount) throws IOException
+  {
+    final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try
+    {
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<schemas>\n");
+      for (int i = 0; i < nodeCount; ++i)
+      {
+        if ((i % NODES_PER_SCHEMA) == 0)
+        {
+          if (i > 0)
+          {
+            out.write("  </schema>\n");
+          }
+
+          out.write("  <schema id=\"Env" + (i / NODES_PER_SCHEMA) + "\">\n");
+        }
+
+        out.write("    <node id=\"DB" + i + "\">\n");
+        out.write("      <url>jdbc:postgresql://db" + i + ".example.com:5432/work?ssl=true&amp;app=workchart</url>\n");
+        out.write("      <id>user" + i + "</id>\n");
+        out.write("      <pw>pw" + i + "</pw>\n");
+        out.write("    </node>\n");
+      }
+
+      out.write((nodeCount > 0) ? "  </schema>\n</schemas>\n" : "</schemas>\n");
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,380 @@
+package io.miti.workchart.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jfree.chart.ChartUtilities;
+import org.jfree.chart.JFreeChart;
+
+import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.cache.SchemaCache;
+import io.miti.workchart.model.ChartCatalog;
+import io.miti.workchart.model.EnvironmentChart;
+import io.miti.workchart.model.Node;
+import io.miti.workchart.model.PopChart;
+import io.miti.workchart.util.Logger;
+import io.miti.workchart.util.Utility;
+import io.miti.workchart.util.WindowState;
+
+/**
+ * Render every chart for every node to a PNG file, without a window.
+ * The charts are loaded and drawn on a fixed number of threads (by
+ * default, one per processor), but no more queries run against a node
+ * than its connection pool holds, so a long query doesn't make the
+ * others time out waiting for a connection.  The catalog is created
+ * once per node, and each task draws one of that node's charts, so no
+ * chart is used by two threads.  A chart across an environment is
+ * only drawn once per environment.
+ *
+ * Usage: BatchRenderer [-out dir] [-env name] [-node name]
+ *        [-width pixels] [-height pixels] [-threads count]
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class BatchRenderer
+{
+  /** The default image width. */
+  private static final int DEFAULT_WIDTH = 800;
+
+  /** The default image height. */
+  private static final int DEFAULT_HEIGHT = 600;
+
+  /** The directory to write the images to. */
+  private File outDir = new File("charts");
+
+  /** The environment to render, or null for all. */
+  private String env = null;
+
+  /** The node to render, or null for all. */
+  private String nodeName = null;
+
+  /** The image width. */
+  private int width = DEFAULT_WIDTH;
+
+  /** The image height. */
+  private int height = DEFAULT_HEIGHT;
+
+  /** The number of threads. */
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+
+  /**
+   * Default constructor.
+   */
+  private BatchRenderer()
+  {
+    super();
+  }
+
+
+  /**
+   * Parse the command line.
+   *
+   * @param args the arguments
+   * @return whether the arguments are valid
+   */
+  private boolean parseArgs(final String[] args)
+  {
+    for (int i = 0; i < args.length; ++i)
+    {
+      if (i == (args.length - 1))
+      {
+        Logger.error("Missing the value for " + args[i]);
+        return false;
+      }
+
+      final String value = args[++i];
+      if (args[i - 1].equals("-out"))
+      {
+        outDir = new File(value);
+      }
+      else if (args[i - 1].equals("-env"))
+      {
+        env = value;
+      }
+      else if (args[i - 1].equals("-node"))
+      {
+        nodeName = value;
+      }
+      else if (args[i - 1].equals("-width"))
+      {
+        width = Utility.getStringAsInteger(value, -1, -1);
+      }
+      else if (args[i - 1].equals("-height"))
+      {
+        height = Utility.getStringAsInteger(value, -1, -1);
+      }
+      else if (args[i - 1].equals("-threads"))
+      {
+        threads = Utility.getStringAsInteger(value, -1, -1);
+      }
+      else
+      {
+        Logger.error("Unknown argument: " + args[i - 1]);
+        return false;
+      }
+    }
+
+    if ((width <= 0) || (height <= 0) || (threads <= 0))
+    {
+      Logger.error("The width, height and thread count must be positive numbers");
+      return false;
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Render the charts.
+   *
+   * @return the number of charts that failed
+   */
+  private int render()
+  {
+    if (!outDir.isDirectory() && !outDir.mkdirs())
+    {
+      Logger.error("Unable to create the output directory " + outDir.getAbsolutePath());
+      return 1;
+    }
+
+    // Get the nodes to render, and limit the queries on every node
+    // in their environments to the size of a connection pool
+    final SchemaCache schemas = SchemaCache.getCache();
+    final List<Node> nodes = new ArrayList<Node>(20);
+    final Map<Node, Semaphore> permits = new HashMap<Node, Semaphore>(20);
+    for (String envName : schemas.getEnvironments())
+    {
+      if ((env != null) && !env.equals(envName))
+      {
+        continue;
+      }
+
+      for (Node node : schemas.getSchemas(envName))
+      {
+        permits.put(node, new Semaphore(ConnectionCache.POOL_MAX_SIZE));
+        if ((nodeName == null) || nodeName.equals(node.getNode()))
+        {
+          nodes.add(node);
+        }
+      }
+    }
+
+    if (nodes.isEmpty())
+    {
+      Logger.error("No nodes match the arguments");
+      return 1;
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+    {
+      private final AtomicInteger threadNum = new AtomicInteger(0);
+
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        Thread thread = new Thread(r, "chart-render-" + threadNum.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    // Queue a task for each chart on each node
+    final List<Future<Boolean>> tasks = new ArrayList<Future<Boolean>>(nodes.size() * 10);
+    final Set<String> envsDone = new HashSet<String>(5);
+    for (final Node node : nodes)
+    {
+      final boolean firstInEnv = envsDone.add(node.getSchema());
+      final List<PopChart> charts = ChartCatalog.createCharts();
+      for (int i = 0; i < charts.size(); ++i)
+      {
+        final int index = i;
+        final PopChart chart = charts.get(i);
+        if ((chart instanceof EnvironmentChart) && !firstInEnv)
+        {
+          continue;
+        }
+
+        // A chart across an environment queries every node in it
+        final List<Semaphore> chartPermits = new ArrayList<Semaphore>(5);
+        if (chart instanceof EnvironmentChart)
+        {
+          for (Node envNode : schemas.getSchemas(node.getSchema()))
+          {
+            chartPermits.add(permits.get(envNode));
+          }
+        }
+        else
+        {
+          chartPermits.add(permits.get(node));
+        }
+
+        tasks.add(executor.submit(new Callable<Boolean>()
+        {
+          @Override
+          public Boolean call()
+          {
+            return Boolean.valueOf(renderChart(node, chart, index, chartPermits));
+          }
+        }));
+      }
+    }
+
+    // Wait for the tasks to finish
+    int failures = 0;
+    for (Future<Boolean> task : tasks)
+    {
+      try
+      {
+        if (!task.get().booleanValue())
+        {
+          ++failures;
+        }
+      }
+      catch (InterruptedException ie)
+      {
+        Thread.currentThread().interrupt();
+        ++failures;
+        break;
+      }
+      catch (ExecutionException ee)
+      {
+        Logger.error(ee);
+        ++failures;
+      }
+    }
+
+    executor.shutdownNow();
+    return failures;
+  }
+
+
+  /**
+   * Load one chart for one node and write it to a file, once there's
+   * a free query slot on each node it queries.  This runs on a render
+   * thread.
+   *
+   * @param node the node
+   * @param chart the chart
+   * @param index the index of the chart in the catalog
+   * @param chartPermits the query slots for the nodes the chart queries
+   * @return whether the chart was written, or false if its data
+   *         couldn't be loaded
+   */
+  private boolean renderChart(final Node node, final PopChart chart, final int index,
+                              final List<Semaphore> chartPermits)
+  {
+    // The slots are taken in the same order by every task
+    int acquired = 0;
+    try
+    {
+      for (Semaphore slot : chartPermits)
+      {
+        slot.acquire();
+        ++acquired;
+      }
+
+      return renderChart(node, chart, index);
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    finally
+    {
+      for (int i = 0; i < acquired; ++i)
+      {
+        chartPermits.get(i).release();
+      }
+    }
+  }
+
+
+  /**
+   * Load one chart for one node and write it to a file.
+   *
+   * @param node the node
+   * @param chart the chart
+   * @param index the index of the chart in the catalog
+   * @return whether the chart was written, or false if its data
+   *         couldn't be loaded
+   */
+  private boolean renderChart(final Node node, final PopChart chart, final int index)
+  {
+    final boolean envChart = (chart instanceof EnvironmentChart);
+    chart.setNode(node);
+    chart.setPlotWidth(width);
+    final String name = (envChart ? node.getSchema() : (node.getSchema() + "_" + node.getNode()))
+                        + "_" + (index + 1) + "_" + chart.getTitle() + ".png";
+    final File file = new File(outDir, name.replaceAll("[^A-Za-z0-9._-]+", "_"));
+    try
+    {
+      // Don't write an empty chart if the query failed
+      chart.loadData();
+      if (!chart.isDataLoaded())
+      {
+        Logger.error("Unable to load " + chart.getTitle() + " for " + node.getNode());
+        return false;
+      }
+
+      final JFreeChart freeChart = chart.getFreeChart();
+      ChartUtilities.saveChartAsPNG(file, freeChart, width, height);
+    }
+    catch (IOException ioe)
+    {
+      Logger.error("Unable to write " + file.getAbsolutePath(), ioe);
+      return false;
+    }
+    catch (RuntimeException re)
+    {
+      Logger.error("Unable to render " + chart.getTitle() + " for " + node.getNode(), re);
+      return false;
+    }
+
+    Logger.info("Wrote " + file.getAbsolutePath());
+    return true;
+  }
+
+
+  /**
+   * Entry point to the application.
+   *
+   * @param args arguments passed to the application
+   */
+  public static void main(final String[] args)
+  {
+    // There's no display, so tell AWT before anything loads it
+    System.setProperty("java.awt.headless", "true");
+
+    // Load the properties file data and the schemas
+    WindowState.load(WorkChart.PROPS_FILE_NAME);
+    Utility.readFilesAsStream(BatchRenderer.class.getResource("/appicon.png") != null);
+    SchemaCache.getCache().loadCache();
+
+    final BatchRenderer renderer = new BatchRenderer();
+    int failures = 1;
+    if (renderer.parseArgs(args))
+    {
+      failures = renderer.render();
+    }
+
+    ConnectionCache.getConnectionCache().closeConnection();
+    System.exit((failures == 0) ? 0 : 1);
+  }
+}
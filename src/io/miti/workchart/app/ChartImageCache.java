@@ -0,0 +1,244 @@
+package io.miti.workchart.app;
+
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import org.jfree.chart.JFreeChart;
+
+import io.miti.workchart.model.PopChart;
+import io.miti.workchart.util.Logger;
+
+/**
+ * Images of the loaded charts, drawn in the background at the size of
+ * the chart panel, so a chart can be shown as soon as it's selected
+ * while its live panel is built.  Each image is drawn from a copy of
+ * the chart's data, so the background thread never touches a chart
+ * that's on screen.  When the panel is resized, the images are drawn
+ * again once the resizing stops.
+ *
+ * All of the methods must be called on the Event Dispatch Thread.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class ChartImageCache
+{
+  /** How long the size must be unchanged before drawing again. */
+  private static final int RESIZE_DELAY_MILLIS = 300;
+
+  /** The thread that draws the images. */
+  private final ExecutorService executor;
+
+  /** The image for each chart. */
+  private final Map<PopChart, BufferedImage> images = new IdentityHashMap<PopChart, BufferedImage>(10);
+
+  /** The images being drawn. */
+  private final Map<PopChart, Future<?>> pending = new IdentityHashMap<PopChart, Future<?>>(10);
+
+  /** Starts drawing again after a resize. */
+  private final Timer resizeTimer;
+
+  /** The size to draw the images. */
+  private Dimension size = new Dimension(0, 0);
+
+  /** Incremented by clear(), so images drawn before it are dropped. */
+  private int generation = 0;
+
+
+  /**
+   * Default constructor.
+   */
+  public ChartImageCache()
+  {
+    final AtomicInteger threadNum = new AtomicInteger(0);
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        Thread thread = new Thread(r, "chart-prerender-" + threadNum.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+
+    resizeTimer = new Timer(RESIZE_DELAY_MILLIS, new ActionListener()
+    {
+      @Override
+      public void actionPerformed(final ActionEvent e)
+      {
+        redrawAll();
+      }
+    });
+    resizeTimer.setRepeats(false);
+  }
+
+
+  /**
+   * Return the image of a chart, if there is one at the current size.
+   *
+   * @param chart the chart
+   * @return the image, or null
+   */
+  public BufferedImage getImage(final PopChart chart)
+  {
+    final BufferedImage image = images.get(chart);
+    if ((image == null) || (image.getWidth() != size.width) || (image.getHeight() != size.height))
+    {
+      return null;
+    }
+
+    return image;
+  }
+
+
+  /**
+   * Draw a chart in the background, if its data is loaded.
+   *
+   * @param chart the chart
+   */
+  public void prerender(final PopChart chart)
+  {
+    if (!chart.isDataLoaded() || (size.width <= 0) || (size.height <= 0))
+    {
+      return;
+    }
+
+    final JFreeChart snapshot = chart.createSnapshot();
+    if (snapshot == null)
+    {
+      return;
+    }
+
+    final Future<?> previous = pending.remove(chart);
+    if (previous != null)
+    {
+      previous.cancel(false);
+    }
+
+    final int width = size.width;
+    final int height = size.height;
+    final int gen = generation;
+    pending.put(chart, executor.submit(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          final BufferedImage image = snapshot.createBufferedImage(width, height);
+          SwingUtilities.invokeLater(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              saveImage(chart, image, gen);
+            }
+          });
+        }
+        catch (RuntimeException re)
+        {
+          Logger.error("Unable to draw " + chart.getTitle(), re);
+        }
+      }
+    }));
+  }
+
+
+  /**
+   * Set the size of the chart panel.  If it changed, the images are
+   * drawn again once it stops changing.
+   *
+   * @param newSize the size
+   */
+  public void setSize(final Dimension newSize)
+  {
+    if (newSize.equals(size))
+    {
+      return;
+    }
+
+    size = new Dimension(newSize);
+    resizeTimer.restart();
+  }
+
+
+  /**
+   * Drop all of the images, such as when the node changes.
+   */
+  public void clear()
+  {
+    ++generation;
+    for (Future<?> task : pending.values())
+    {
+      task.cancel(false);
+    }
+
+    pending.clear();
+    images.clear();
+    resizeTimer.stop();
+  }
+
+
+  /**
+   * Stop the background thread.
+   */
+  public void shutdown()
+  {
+    clear();
+    executor.shutdownNow();
+  }
+
+
+  /**
+   * Keep an image that was drawn, unless the images were cleared.  If
+   * the size changed while it was drawn, and the panel isn't still
+   * being resized, it's drawn again.
+   *
+   * @param chart the chart
+   * @param image the image
+   * @param gen the generation when the drawing started
+   */
+  private void saveImage(final PopChart chart, final BufferedImage image, final int gen)
+  {
+    if (gen != generation)
+    {
+      return;
+    }
+
+    images.put(chart, image);
+    if ((getImage(chart) == null) && !resizeTimer.isRunning())
+    {
+      prerender(chart);
+    }
+  }
+
+
+  /**
+   * Draw the images again at the current size.
+   */
+  private void redrawAll()
+  {
+    for (PopChart chart : new ArrayList<PopChart>(images.keySet()))
+    {
+      if (getImage(chart) == null)
+      {
+        prerender(chart);
+      }
+    }
+  }
+}
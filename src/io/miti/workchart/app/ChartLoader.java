@@ -0,0 +1,212 @@
+package io.miti.workchart.app;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+import io.miti.workchart.model.PopChart;
+import io.miti.workchart.util.Logger;
+
+/**
+ * Load chart data on a background thread, so the user interface
+ * stays responsive while the queries run.  Only the most recent
+ * request is reported back to the listener; starting a new load
+ * cancels the query for the previous one.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class ChartLoader
+{
+  /** The thread that runs the queries. */
+  private final ExecutorService executor;
+
+  /** The listener notified (on the EDT) as loads progress. */
+  private final IChartLoadListener listener;
+
+  /** Incremented for every request, so stale results can be dropped. */
+  private final AtomicLong generation = new AtomicLong(0L);
+
+  /** The chart currently being loaded. */
+  private volatile PopChart activeChart = null;
+
+
+  /**
+   * Constructor.
+   *
+   * @param loadListener the listener for load events
+   */
+  public ChartLoader(final IChartLoadListener loadListener)
+  {
+    listener = loadListener;
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        Thread thread = new Thread(r, "chart-loader");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+
+  /**
+   * Start loading a chart.  Any load already in progress is cancelled.
+   *
+   * @param chart the chart to load
+   */
+  public void load(final PopChart chart)
+  {
+    cancel();
+
+    final long id = generation.incrementAndGet();
+    activeChart = chart;
+    listener.loadProgress(chart, "Loading " + chart.getTitle() + "...");
+
+    executor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        runLoad(chart, id);
+      }
+    });
+  }
+
+
+  /**
+   * Cancel the load in progress, if any.  The server is asked to stop
+   * the query, and the result (if any) is not reported.
+   */
+  public void cancel()
+  {
+    generation.incrementAndGet();
+    final PopChart chart = activeChart;
+    activeChart = null;
+    if (chart != null)
+    {
+      chart.cancelLoad();
+    }
+  }
+
+
+  /**
+   * Stop the background thread.
+   */
+  public void shutdown()
+  {
+    cancel();
+    executor.shutdownNow();
+  }
+
+
+  /**
+   * Load the data and build the chart.  This runs on the loader thread.
+   *
+   * @param chart the chart to load
+   * @param id the generation of this request
+   */
+  private void runLoad(final PopChart chart, final long id)
+  {
+    // Check if the request was superseded before it started
+    if (id != generation.get())
+    {
+      return;
+    }
+
+    try
+    {
+      chart.loadData();
+      if (id != generation.get())
+      {
+        return;
+      }
+
+      // If the data came from a stale cached result, show it now
+      // and then refresh it
+      final boolean refresh = chart.isStale();
+      postFinished(chart, id, !refresh);
+      if (!refresh)
+      {
+        return;
+      }
+
+      postProgress(chart, id, "Refreshing " + chart.getTitle() + "...");
+      chart.refreshData();
+      postFinished(chart, id, true);
+    }
+    catch (final Exception ex)
+    {
+      Logger.error(ex);
+      SwingUtilities.invokeLater(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          if (id == generation.get())
+          {
+            activeChart = null;
+            listener.loadFailed(chart, ex);
+          }
+        }
+      });
+    }
+  }
+
+
+  /**
+   * Tell the listener, on the EDT, that the chart's data is ready.
+   * The data is moved into the chart there, since it may be showing.
+   *
+   * @param chart the chart
+   * @param id the generation of the request
+   * @param last whether this is the final result for the request
+   */
+  private void postFinished(final PopChart chart, final long id, final boolean last)
+  {
+    SwingUtilities.invokeLater(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (id == generation.get())
+        {
+          if (last)
+          {
+            activeChart = null;
+          }
+
+          listener.loadFinished(chart);
+        }
+      }
+    });
+  }
+
+
+  /**
+   * Send a progress message to the listener on the EDT.
+   *
+   * @param chart the chart being loaded
+   * @param id the generation of the request
+   * @param msg the message
+   */
+  private void postProgress(final PopChart chart, final long id, final String msg)
+  {
+    SwingUtilities.invokeLater(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (id == generation.get())
+        {
+          listener.loadProgress(chart, msg);
+        }
+      }
+    });
+  }
+}
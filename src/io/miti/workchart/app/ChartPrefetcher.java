@@ -0,0 +1,263 @@
+package io.miti.workchart.app;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+import io.miti.workchart.dbutil.QueryHandle;
+import io.miti.workchart.model.GroupingSetsLoader;
+import io.miti.workchart.model.Node;
+import io.miti.workchart.model.PopChart;
+import io.miti.workchart.util.Logger;
+
+/**
+ * Load the data for every chart in the background after a connection
+ * is made, so switching between charts afterwards doesn't wait on a
+ * query.  The number of threads is bounded, and so is the number of
+ * queries running against any one node.  Charts on the same table
+ * are loaded together with one scan.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class ChartPrefetcher
+{
+  /** The number of prefetch threads. */
+  private static final int NUM_THREADS = 4;
+
+  /** The maximum number of prefetch queries running against one node. */
+  private static final int MAX_QUERIES_PER_NODE = 2;
+
+  /** The threads that run the queries. */
+  private final ExecutorService executor;
+
+  /** Limits the number of queries per node. */
+  private final Map<Node, Semaphore> nodePermits = new HashMap<Node, Semaphore>(5);
+
+  /** The tasks for the current prefetch. */
+  private final List<Future<?>> tasks = new ArrayList<Future<?>>(10);
+
+  /** The handles for the combined queries. */
+  private final List<QueryHandle> handles = new ArrayList<QueryHandle>(10);
+
+  /** The charts being prefetched. */
+  private final List<PopChart> charts = new ArrayList<PopChart>(10);
+
+  /** The prefetch threads, to tell their chart loads from other loads. */
+  private final Set<Thread> threads = new HashSet<Thread>(NUM_THREADS * 2);
+
+  /** Notified as each chart is loaded. */
+  private final IChartPrefetchListener listener;
+
+
+  /**
+   * Constructor.
+   *
+   * @param prefetchListener notified as each chart is loaded
+   */
+  public ChartPrefetcher(final IChartPrefetchListener prefetchListener)
+  {
+    listener = prefetchListener;
+    final AtomicInteger threadNum = new AtomicInteger(0);
+    executor = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        Thread thread = new Thread(r, "chart-prefetch-" + threadNum.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        synchronized (threads)
+        {
+          threads.add(thread);
+        }
+
+        return thread;
+      }
+    });
+  }
+
+
+  /**
+   * Start loading the charts against a node.  Any prefetch already
+   * running is cancelled.
+   *
+   * @param node the node the charts query
+   * @param chartList the charts to load
+   */
+  public synchronized void prefetch(final Node node, final List<PopChart> chartList)
+  {
+    cancel();
+    if ((node == null) || (chartList == null))
+    {
+      return;
+    }
+
+    // Charts on the same table are loaded with one scan
+    final Semaphore permits = getPermits(node);
+    for (final List<PopChart> batch : GroupingSetsLoader.groupByTable(chartList))
+    {
+      final QueryHandle handle = new QueryHandle();
+      handles.add(handle);
+      charts.addAll(batch);
+      tasks.add(executor.submit(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          load(node, batch, handle, permits);
+        }
+      }));
+    }
+  }
+
+
+  /**
+   * Cancel the prefetch.  Queries that the prefetch started are
+   * stopped, but a chart load started elsewhere, such as the one for
+   * the chart being shown, is left to finish.
+   */
+  public synchronized void cancel()
+  {
+    for (Future<?> task : tasks)
+    {
+      task.cancel(false);
+    }
+
+    for (QueryHandle handle : handles)
+    {
+      handle.cancel();
+    }
+
+    final List<Thread> list;
+    synchronized (threads)
+    {
+      list = new ArrayList<Thread>(threads);
+    }
+
+    for (PopChart chart : charts)
+    {
+      for (Thread thread : list)
+      {
+        chart.cancelLoad(thread);
+      }
+    }
+
+    tasks.clear();
+    handles.clear();
+    charts.clear();
+  }
+
+
+  /**
+   * Stop the background threads.
+   */
+  public void shutdown()
+  {
+    cancel();
+    executor.shutdownNow();
+  }
+
+
+  /**
+   * Load a batch of charts, waiting for a free query slot on the node.
+   * If there's more than one chart in the batch, they're loaded with
+   * one combined query.
+   *
+   * @param node the node
+   * @param batch the charts
+   * @param handle the handle for the combined query
+   * @param permits the query slots for the node
+   */
+  private void load(final Node node, final List<PopChart> batch,
+                           final QueryHandle handle, final Semaphore permits)
+  {
+    try
+    {
+      permits.acquire();
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    try
+    {
+      if (batch.size() > 1)
+      {
+        GroupingSetsLoader.load(node, batch, handle);
+      }
+
+      for (PopChart chart : batch)
+      {
+        if (handle.isCancelled())
+        {
+          break;
+        }
+
+        chart.loadData();
+        if (chart.isDataLoaded())
+        {
+          postPrefetched(chart);
+        }
+      }
+    }
+    catch (Exception ex)
+    {
+      Logger.error(ex);
+    }
+    finally
+    {
+      permits.release();
+    }
+  }
+
+
+  /**
+   * Tell the listener on the Event Dispatch Thread that a chart is loaded.
+   *
+   * @param chart the chart
+   */
+  private void postPrefetched(final PopChart chart)
+  {
+    SwingUtilities.invokeLater(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        listener.chartPrefetched(chart);
+      }
+    });
+  }
+
+
+  /**
+   * Get the query slots for a node.
+   *
+   * @param node the node
+   * @return the semaphore limiting queries on the node
+   */
+  private Semaphore getPermits(final Node node)
+  {
+    Semaphore permits = nodePermits.get(node);
+    if (permits == null)
+    {
+      permits = new Semaphore(MAX_QUERIES_PER_NODE);
+      nodePermits.put(node, permits);
+    }
+
+    return permits;
+  }
+}
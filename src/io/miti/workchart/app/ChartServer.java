@@ -0,0 +1,688 @@
+package io.miti.workchart.app;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jfree.chart.ChartUtilities;
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.data.general.AbstractDataset;
+import org.jfree.data.general.PieDataset;
+import org.jfree.data.xy.XYDataset;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.cache.SchemaCache;
+import io.miti.workchart.model.ChartCatalog;
+import io.miti.workchart.model.Node;
+import io.miti.workchart.model.PopChart;
+import io.miti.workchart.util.Logger;
+import io.miti.workchart.util.Utility;
+import io.miti.workchart.util.WindowState;
+
+/**
+ * Serve the charts for one node over HTTP, for dashboards.
+ *
+ * <ul>
+ * <li>/charts - a JSON list of the charts</li>
+ * <li>/charts/{id}.png - the chart as an image (width and height
+ *     can be set with the w and h query parameters)</li>
+ * <li>/charts/{id}.json - the chart's data</li>
+ * </ul>
+ *
+ * The charts are the ones in the catalog, loaded through the shared
+ * result cache and connection pool.  Requests are handled by a fixed
+ * number of worker threads, and each chart is loaded by one request
+ * at a time, so many viewers don't mean many copies of a query.  A
+ * chart's data is reloaded when it's older than the refresh interval.
+ * The ETag of each response is a hash of the chart's data, so a
+ * client with the current data gets a 304.
+ *
+ * Usage: ChartServer [-port number] [-env name] [-node name]
+ *        [-threads count] [-refresh seconds]
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class ChartServer
+{
+  /** The default port. */
+  private static final int DEFAULT_PORT = 8080;
+
+  /** The default image width. */
+  private static final int DEFAULT_WIDTH = 800;
+
+  /** The default image height. */
+  private static final int DEFAULT_HEIGHT = 600;
+
+  /** The largest image dimension allowed. */
+  private static final int MAX_DIMENSION = 4000;
+
+  /** The character set for text responses. */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The port to listen on. */
+  private int port = DEFAULT_PORT;
+
+  /** The number of worker threads. */
+  private int threads = 4;
+
+  /** How long a chart's data is used before it's reloaded. */
+  private long refreshMillis = 60000L;
+
+  /** The charts, in catalog order. */
+  private ServedChart[] charts = null;
+
+  /** The HTTP server. */
+  private HttpServer server = null;
+
+  /** The worker threads. */
+  private ExecutorService executor = null;
+
+
+  /**
+   * A chart, with its last load time and rendered image.  The lock
+   * on this object guards the chart.
+   */
+  private static final class ServedChart
+  {
+    /** The chart. */
+    private final PopChart chart;
+
+    /** When the data was loaded, or 0 if it hasn't been. */
+    private long loadedAt = 0L;
+
+    /** The chart's data as JSON. */
+    private String json = null;
+
+    /** The hash of the JSON, used for the ETag. */
+    private String hash = null;
+
+    /** The last image, and the size and data it was drawn for. */
+    private byte[] png = null;
+    private String pngKey = null;
+
+
+    /**
+     * Constructor.
+     *
+     * @param popChart the chart
+     */
+    public ServedChart(final PopChart popChart)
+    {
+      chart = popChart;
+    }
+  }
+
+
+  /**
+   * Constructor.
+   */
+  private ChartServer()
+  {
+    super();
+  }
+
+
+  /**
+   * Parse the command line, and find the node to serve.
+   *
+   * @param args the arguments
+   * @return the node, or null if the arguments aren't valid
+   */
+  private Node parseArgs(final String[] args)
+  {
+    String env = WindowState.getInstance().getEnvironment();
+    String nodeName = WindowState.getInstance().getSchema();
+    for (int i = 0; i < args.length; ++i)
+    {
+      if (i == (args.length - 1))
+      {
+        Logger.error("Missing the value for " + args[i]);
+        return null;
+      }
+
+      final String value = args[++i];
+      if (args[i - 1].equals("-port"))
+      {
+        port = Utility.getStringAsInteger(value, -1, -1);
+      }
+      else if (args[i - 1].equals("-env"))
+      {
+        env = value;
+      }
+      else if (args[i - 1].equals("-node"))
+      {
+        nodeName = value;
+      }
+      else if (args[i - 1].equals("-threads"))
+      {
+        threads = Utility.getStringAsInteger(value, -1, -1);
+      }
+      else if (args[i - 1].equals("-refresh"))
+      {
+        refreshMillis = Utility.getStringAsInteger(value, -1, -1) * 1000L;
+      }
+      else
+      {
+        Logger.error("Unknown argument: " + args[i - 1]);
+        return null;
+      }
+    }
+
+    if ((port <= 0) || (threads <= 0) || (refreshMillis < 0L))
+    {
+      Logger.error("The port, thread count and refresh interval must be positive numbers");
+      return null;
+    }
+
+    final Node node = SchemaCache.getCache().getNode(env, nodeName);
+    if (node == null)
+    {
+      Logger.error("Unable to find node " + nodeName + " in environment " + env);
+    }
+
+    return node;
+  }
+
+
+  /**
+   * Start the server.
+   *
+   * @param node the node to serve the charts for
+   * @return whether the server started
+   */
+  public boolean start(final Node node)
+  {
+    final List<PopChart> list = ChartCatalog.createCharts();
+    charts = new ServedChart[list.size()];
+    for (int i = 0; i < charts.length; ++i)
+    {
+      final PopChart chart = list.get(i);
+      chart.setNode(node);
+      chart.setPlotWidth(DEFAULT_WIDTH);
+      charts[i] = new ServedChart(chart);
+    }
+
+    try
+    {
+      server = HttpServer.create(new InetSocketAddress(port), 0);
+    }
+    catch (IOException ioe)
+    {
+      Logger.error("Unable to listen on port " + port, ioe);
+      return false;
+    }
+
+    final AtomicInteger threadNum = new AtomicInteger(0);
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        return new Thread(r, "chart-http-" + threadNum.incrementAndGet());
+      }
+    });
+
+    server.setExecutor(executor);
+    server.createContext("/charts", new HttpHandler()
+    {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException
+      {
+        try
+        {
+          handleRequest(exchange);
+        }
+        catch (RuntimeException re)
+        {
+          Logger.error("Unable to handle " + exchange.getRequestURI(), re);
+          sendText(exchange, 500, "text/plain", "Internal error", null);
+        }
+        finally
+        {
+          exchange.close();
+        }
+      }
+    });
+
+    server.start();
+    Logger.info("Serving " + charts.length + " charts for " + node.getNode() + " on port " + port);
+    return true;
+  }
+
+
+  /**
+   * Stop the server.
+   */
+  public void stop()
+  {
+    if (server != null)
+    {
+      server.stop(1);
+      server = null;
+    }
+
+    if (executor != null)
+    {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+
+  /**
+   * Handle a request.
+   *
+   * @param exchange the request and response
+   * @throws IOException an error sending the response
+   */
+  private void handleRequest(final HttpExchange exchange) throws IOException
+  {
+    final String method = exchange.getRequestMethod();
+    if (!method.equals("GET") && !method.equals("HEAD"))
+    {
+      sendText(exchange, 405, "text/plain", "Method not allowed", null);
+      return;
+    }
+
+    final String path = exchange.getRequestURI().getPath();
+    if (path.equals("/charts") || path.equals("/charts/"))
+    {
+      sendText(exchange, 200, "application/json", listCharts(), null);
+      return;
+    }
+
+    // Get the chart number and the format
+    final int dot = path.lastIndexOf('.');
+    final int id = ((dot < 0) || !path.startsWith("/charts/")) ? -1
+                   : Utility.getStringAsInteger(path.substring(8, dot), -1, -1);
+    final String ext = (dot < 0) ? "" : path.substring(dot + 1);
+    if ((id < 1) || (id > charts.length) || (!ext.equals("png") && !ext.equals("json")))
+    {
+      sendText(exchange, 404, "text/plain", "Not found", null);
+      return;
+    }
+
+    final ServedChart served = charts[id - 1];
+    if (ext.equals("json"))
+    {
+      String json = null;
+      String etag = null;
+      synchronized (served)
+      {
+        loadChart(served);
+        json = served.json;
+        etag = "\"" + served.hash + "\"";
+      }
+
+      if (!checkETag(exchange, etag))
+      {
+        sendText(exchange, 200, "application/json", json, etag);
+      }
+
+      return;
+    }
+
+    // Draw the image, unless the client has it already
+    final String query = exchange.getRequestURI().getQuery();
+    final int width = getDimension(query, "w", DEFAULT_WIDTH);
+    final int height = getDimension(query, "h", DEFAULT_HEIGHT);
+    byte[] png = null;
+    String etag = null;
+    synchronized (served)
+    {
+      loadChart(served);
+      final String key = served.hash + "-" + width + "x" + height;
+      if (checkETag(exchange, "\"" + key + "\""))
+      {
+        return;
+      }
+
+      if (!key.equals(served.pngKey))
+      {
+        served.png = ChartUtilities.encodeAsPNG(
+                       served.chart.getChart().createBufferedImage(width, height));
+        served.pngKey = key;
+      }
+
+      png = served.png;
+      etag = "\"" + key + "\"";
+    }
+
+    exchange.getResponseHeaders().set("Content-Type", "image/png");
+    exchange.getResponseHeaders().set("ETag", etag);
+    sendBytes(exchange, 200, png);
+  }
+
+
+  /**
+   * Load the chart's data, if it hasn't been loaded or it's older
+   * than the refresh interval.  A reload runs the query again, since
+   * loadData() would return the shared cached result.  The caller
+   * must hold the lock on the chart.
+   *
+   * @param served the chart
+   */
+  private void loadChart(final ServedChart served)
+  {
+    final long now = System.currentTimeMillis();
+    final PopChart chart = served.chart;
+    if ((served.json != null) && ((now - served.loadedAt) < refreshMillis))
+    {
+      return;
+    }
+
+    if (served.json == null)
+    {
+      chart.loadData();
+    }
+    else
+    {
+      chart.refreshData();
+    }
+
+    // The first load can use a cached result that's past its
+    // time-to-live, so don't serve it
+    if (chart.isStale())
+    {
+      chart.refreshData();
+    }
+
+    chart.applyData();
+    chart.getChart();
+    served.loadedAt = now;
+    served.json = toJson(chart);
+    served.hash = hash(served.json);
+  }
+
+
+  /**
+   * Send a 304 if the client has the current version.
+   *
+   * @param exchange the request and response
+   * @param etag the ETag of the current version
+   * @return whether the 304 was sent
+   * @throws IOException an error sending the response
+   */
+  private static boolean checkETag(final HttpExchange exchange, final String etag)
+    throws IOException
+  {
+    final String match = exchange.getRequestHeaders().getFirst("If-None-Match");
+    if ((match == null) || !match.contains(etag))
+    {
+      return false;
+    }
+
+    exchange.getResponseHeaders().set("ETag", etag);
+    exchange.sendResponseHeaders(304, -1);
+    return true;
+  }
+
+
+  /**
+   * Get an image dimension from the query string.
+   *
+   * @param query the query string, or null
+   * @param name the parameter name
+   * @param defaultValue the value if the parameter isn't set or valid
+   * @return the dimension
+   */
+  private static int getDimension(final String query, final String name, final int defaultValue)
+  {
+    if (query == null)
+    {
+      return defaultValue;
+    }
+
+    for (String param : query.split("&"))
+    {
+      if (param.startsWith(name + "="))
+      {
+        final int value = Utility.getStringAsInteger(param.substring(name.length() + 1), -1, -1);
+        return ((value > 0) && (value <= MAX_DIMENSION)) ? value : defaultValue;
+      }
+    }
+
+    return defaultValue;
+  }
+
+
+  /**
+   * Return the list of charts as JSON.
+   *
+   * @return the list of charts
+   */
+  private String listCharts()
+  {
+    final StringBuilder sb = new StringBuilder(100 * charts.length);
+    sb.append('[');
+    for (int i = 0; i < charts.length; ++i)
+    {
+      final int id = i + 1;
+      sb.append((i == 0) ? "" : ",").append("{\"id\":").append(id)
+        .append(",\"title\":").append(quote(charts[i].chart.getTitle()))
+        .append(",\"png\":\"/charts/").append(id).append(".png\"")
+        .append(",\"json\":\"/charts/").append(id).append(".json\"}");
+    }
+
+    return sb.append(']').toString();
+  }
+
+
+  /**
+   * Return a chart's data as JSON.
+   *
+   * @param chart the chart
+   * @return the data
+   */
+  private static String toJson(final PopChart chart)
+  {
+    final AbstractDataset dataset = chart.getDataset();
+    final StringBuilder sb = new StringBuilder(1000);
+    sb.append("{\"title\":").append(quote(chart.getTitle()));
+    if (dataset instanceof PieDataset)
+    {
+      final PieDataset pie = (PieDataset) dataset;
+      sb.append(",\"type\":\"pie\",\"data\":[");
+      for (int i = 0; i < pie.getItemCount(); ++i)
+      {
+        sb.append((i == 0) ? "" : ",").append("{\"key\":").append(quote(pie.getKey(i)))
+          .append(",\"value\":").append(pie.getValue(i)).append('}');
+      }
+    }
+    else if (dataset instanceof CategoryDataset)
+    {
+      final CategoryDataset cd = (CategoryDataset) dataset;
+      sb.append(",\"type\":\"category\",\"data\":[");
+      for (int row = 0; row < cd.getRowCount(); ++row)
+      {
+        for (int col = 0; col < cd.getColumnCount(); ++col)
+        {
+          sb.append(((row + col) == 0) ? "" : ",")
+            .append("{\"series\":").append(quote(cd.getRowKey(row)))
+            .append(",\"key\":").append(quote(cd.getColumnKey(col)))
+            .append(",\"value\":").append(cd.getValue(row, col)).append('}');
+        }
+      }
+    }
+    else if (dataset instanceof XYDataset)
+    {
+      final XYDataset xy = (XYDataset) dataset;
+      sb.append(",\"type\":\"xy\",\"data\":[");
+      for (int series = 0; series < xy.getSeriesCount(); ++series)
+      {
+        for (int item = 0; item < xy.getItemCount(series); ++item)
+        {
+          sb.append(((series + item) == 0) ? "" : ",")
+            .append("{\"series\":").append(quote(xy.getSeriesKey(series)))
+            .append(",\"x\":").append(xy.getX(series, item))
+            .append(",\"y\":").append(xy.getY(series, item)).append('}');
+        }
+      }
+    }
+    else
+    {
+      sb.append(",\"data\":[");
+    }
+
+    return sb.append("]}").toString();
+  }
+
+
+  /**
+   * Return a value as a JSON string.
+   *
+   * @param value the value
+   * @return the quoted and escaped string
+   */
+  private static String quote(final Object value)
+  {
+    if (value == null)
+    {
+      return "null";
+    }
+
+    final String str = value.toString();
+    final StringBuilder sb = new StringBuilder(str.length() + 2);
+    sb.append('"');
+    for (int i = 0; i < str.length(); ++i)
+    {
+      final char ch = str.charAt(i);
+      if ((ch == '"') || (ch == '\\'))
+      {
+        sb.append('\\').append(ch);
+      }
+      else if (ch < ' ')
+      {
+        sb.append(String.format("\\u%04x", (int) ch));
+      }
+      else
+      {
+        sb.append(ch);
+      }
+    }
+
+    return sb.append('"').toString();
+  }
+
+
+  /**
+   * Return a hash of a string, in hex.
+   *
+   * @param str the string
+   * @return the hash
+   */
+  private static String hash(final String str)
+  {
+    try
+    {
+      final byte[] digest = MessageDigest.getInstance("SHA-1").digest(str.getBytes(UTF8));
+      final StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest)
+      {
+        sb.append(String.format("%02x", b & 0xFF));
+      }
+
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException nsae)
+    {
+      return Integer.toHexString(str.hashCode());
+    }
+  }
+
+
+  /**
+   * Send a text response.
+   *
+   * @param exchange the request and response
+   * @param status the status code
+   * @param type the content type
+   * @param text the body
+   * @param etag the ETag, or null
+   * @throws IOException an error sending the response
+   */
+  private static void sendText(final HttpExchange exchange, final int status, final String type,
+                               final String text, final String etag)
+    throws IOException
+  {
+    exchange.getResponseHeaders().set("Content-Type", type + "; charset=UTF-8");
+    if (etag != null)
+    {
+      exchange.getResponseHeaders().set("ETag", etag);
+    }
+
+    sendBytes(exchange, status, text.getBytes(UTF8));
+  }
+
+
+  /**
+   * Send a response.
+   *
+   * @param exchange the request and response
+   * @param status the status code
+   * @param body the body
+   * @throws IOException an error sending the response
+   */
+  private static void sendBytes(final HttpExchange exchange, final int status, final byte[] body)
+    throws IOException
+  {
+    exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+    final boolean head = exchange.getRequestMethod().equals("HEAD");
+    exchange.sendResponseHeaders(status, head ? -1 : body.length);
+    if (!head)
+    {
+      final OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.flush();
+    }
+  }
+
+
+  /**
+   * Entry point to the application.
+   *
+   * @param args arguments passed to the application
+   */
+  public static void main(final String[] args)
+  {
+    // There's no display, so tell AWT before anything loads it
+    System.setProperty("java.awt.headless", "true");
+
+    // Load the properties file data and the schemas
+    WindowState.load(WorkChart.PROPS_FILE_NAME);
+    Utility.readFilesAsStream(ChartServer.class.getResource("/appicon.png") != null);
+    SchemaCache.getCache().loadCache();
+
+    final ChartServer chartServer = new ChartServer();
+    final Node node = chartServer.parseArgs(args);
+    if ((node == null) || !chartServer.start(node))
+    {
+      ConnectionCache.getConnectionCache().closeConnection();
+      System.exit(1);
+    }
+
+    // Close the connections when the server is stopped
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        chartServer.stop();
+        ConnectionCache.getConnectionCache().closeConnection();
+      }
+    }, "chart-http-shutdown"));
+  }
+}
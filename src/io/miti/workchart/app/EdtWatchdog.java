@@ -0,0 +1,305 @@
+package io.miti.workchart.app;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.model.Node;
+import io.miti.workchart.model.PopChart;
+import io.miti.workchart.util.Logger;
+
+/**
+ * Watch for the Event Dispatch Thread being blocked.  A heartbeat is
+ * posted to the event queue, and if it hasn't run within the stall
+ * threshold, the stack of the Event Dispatch Thread is captured along
+ * with the chart and node in use.  When the heartbeat finally runs,
+ * the stall is logged with its length, and counted in a histogram and
+ * under the application method that was running.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class EdtWatchdog
+{
+  /** The upper bounds of the histogram buckets, in milliseconds. */
+  private static final long[] BUCKET_MILLIS = {1000L, 2000L, 5000L, 10000L, 30000L, Long.MAX_VALUE};
+
+  /** The time between heartbeats, in milliseconds. */
+  private static final long INTERVAL_MILLIS = 200L;
+
+  /** The package prefix of the application's classes. */
+  private static final String APP_PACKAGE = "io.miti.workchart.";
+
+  /** How long the thread can be blocked before it's a stall. */
+  private final long thresholdMillis;
+
+  /** The thread posting the heartbeats. */
+  private Thread thread = null;
+
+  /** The Event Dispatch Thread, as of the last heartbeat. */
+  private volatile Thread edtThread = null;
+
+  /** The chart being shown. */
+  private volatile PopChart chart = null;
+
+  /** The number of stalls in each bucket. */
+  private final long[] buckets = new long[BUCKET_MILLIS.length];
+
+  /** The number of stalls. */
+  private long stalls = 0L;
+
+  /** The total length of the stalls, in milliseconds. */
+  private long totalMillis = 0L;
+
+  /** The longest stall, in milliseconds. */
+  private long maxMillis = 0L;
+
+  /** The count, total and longest stall for each application method. */
+  private final Map<String, long[]> offenders = new LinkedHashMap<String, long[]>(10);
+
+
+  /**
+   * A heartbeat posted to the event queue.
+   */
+  private final class Heartbeat implements Runnable
+  {
+    /** When the heartbeat was posted. */
+    private final long postedAt = System.nanoTime();
+
+    /** Released when the heartbeat runs. */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /** How long the heartbeat waited, in milliseconds. */
+    private volatile long waitMillis = 0L;
+
+
+    @Override
+    public void run()
+    {
+      waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - postedAt);
+      edtThread = Thread.currentThread();
+      done.countDown();
+    }
+
+
+    /**
+     * Return how long the heartbeat has been waiting.
+     *
+     * @return the time since it was posted, in milliseconds
+     */
+    public long getAge()
+    {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - postedAt);
+    }
+  }
+
+
+  /**
+   * Constructor.
+   *
+   * @param nThresholdMillis how long the thread can be blocked before it's reported
+   */
+  public EdtWatchdog(final long nThresholdMillis)
+  {
+    thresholdMillis = nThresholdMillis;
+  }
+
+
+  /**
+   * Start watching.
+   */
+  public synchronized void start()
+  {
+    if ((thread != null) || (thresholdMillis <= 0L))
+    {
+      return;
+    }
+
+    thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          watch();
+        }
+        catch (InterruptedException ie)
+        {
+          // The watchdog was stopped
+        }
+      }
+    }, "edt-watchdog");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+  /**
+   * Stop watching.
+   */
+  public synchronized void stop()
+  {
+    if (thread != null)
+    {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+
+  /**
+   * Set the chart being shown, to report with any stall.
+   *
+   * @param shownChart the chart, or null
+   */
+  public void setChart(final PopChart shownChart)
+  {
+    chart = shownChart;
+  }
+
+
+  /**
+   * Return the stall statistics.
+   *
+   * @return the statistics
+   */
+  public synchronized String getStats()
+  {
+    final StringBuilder sb = new StringBuilder(200);
+    sb.append(String.format("stalls=%d avg=%dms max=%dms histogram=[",
+        stalls, ((stalls == 0L) ? 0L : (totalMillis / stalls)), maxMillis));
+    long low = thresholdMillis;
+    for (int i = 0; i < buckets.length; ++i)
+    {
+      // Stalls are at least as long as the threshold
+      if (BUCKET_MILLIS[i] <= thresholdMillis)
+      {
+        continue;
+      }
+
+      sb.append((low == thresholdMillis) ? "" : " ").append(low).append('-')
+        .append((BUCKET_MILLIS[i] == Long.MAX_VALUE) ? "" : Long.toString(BUCKET_MILLIS[i]))
+        .append("ms:").append(buckets[i]);
+      low = BUCKET_MILLIS[i];
+    }
+
+    sb.append("] offenders=[");
+    boolean first = true;
+    for (Map.Entry<String, long[]> entry : offenders.entrySet())
+    {
+      final long[] values = entry.getValue();
+      sb.append(first ? "" : ", ").append(entry.getKey())
+        .append(String.format(" count=%d avg=%dms max=%dms",
+                              values[0], values[1] / values[0], values[2]));
+      first = false;
+    }
+
+    return sb.append(']').toString();
+  }
+
+
+  /**
+   * Post heartbeats until the thread is interrupted.
+   *
+   * @throws InterruptedException if the watchdog is stopped
+   */
+  private void watch() throws InterruptedException
+  {
+    final long checkMillis = Math.max(10L, thresholdMillis / 4L);
+    while (!Thread.currentThread().isInterrupted())
+    {
+      final Heartbeat beat = new Heartbeat();
+      SwingUtilities.invokeLater(beat);
+
+      // Wait for the heartbeat, and capture what the thread is
+      // doing if it's blocked past the threshold
+      StackTraceElement[] stack = null;
+      PopChart stallChart = null;
+      Node stallNode = null;
+      while (!beat.done.await(checkMillis, TimeUnit.MILLISECONDS))
+      {
+        final Thread edt = edtThread;
+        if ((stack == null) && (edt != null) && (beat.getAge() >= thresholdMillis))
+        {
+          stack = edt.getStackTrace();
+          stallChart = chart;
+          stallNode = ConnectionCache.getConnectionCache().getCurrentNode();
+        }
+      }
+
+      if (stack != null)
+      {
+        recordStall(beat.waitMillis, stack, stallChart, stallNode);
+      }
+
+      Thread.sleep(INTERVAL_MILLIS);
+    }
+  }
+
+
+  /**
+   * Count and log a stall.
+   *
+   * @param millis the length of the stall
+   * @param stack the stack of the Event Dispatch Thread during the stall
+   * @param stallChart the chart being shown, or null
+   * @param stallNode the selected node, or null
+   */
+  private void recordStall(final long millis, final StackTraceElement[] stack,
+                           final PopChart stallChart, final Node stallNode)
+  {
+    // Find the application method that was running
+    String offender = "(not in the application)";
+    for (StackTraceElement frame : stack)
+    {
+      if (frame.getClassName().startsWith(APP_PACKAGE)
+          && !frame.getClassName().startsWith(EdtWatchdog.class.getName()))
+      {
+        offender = frame.getClassName().substring(APP_PACKAGE.length()) + "." + frame.getMethodName();
+        break;
+      }
+    }
+
+    synchronized (this)
+    {
+      int bucket = 0;
+      while (millis > BUCKET_MILLIS[bucket])
+      {
+        ++bucket;
+      }
+
+      ++buckets[bucket];
+      ++stalls;
+      totalMillis += millis;
+      maxMillis = Math.max(maxMillis, millis);
+
+      long[] values = offenders.get(offender);
+      if (values == null)
+      {
+        values = new long[3];
+        offenders.put(offender, values);
+      }
+
+      ++values[0];
+      values[1] += millis;
+      values[2] = Math.max(values[2], millis);
+    }
+
+    final StringBuilder sb = new StringBuilder(1000);
+    sb.append("The UI was blocked for ").append(millis).append("ms in ").append(offender)
+      .append(" (chart: ").append((stallChart == null) ? "none" : stallChart.getTitle())
+      .append(", node: ").append((stallNode == null) ? "none" : stallNode.getStatusString())
+      .append(')');
+    for (StackTraceElement frame : stack)
+    {
+      sb.append("\n    at ").append(frame);
+    }
+
+    Logger.warn(sb.toString());
+  }
+}
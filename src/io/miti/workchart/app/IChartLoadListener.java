@@ -0,0 +1,39 @@
+package io.miti.workchart.app;
+
+import io.miti.workchart.model.PopChart;
+
+/**
+ * Interface for a class that follows the progress of a chart load.
+ * All methods are called on the Event Dispatch Thread.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public interface IChartLoadListener
+{
+  /**
+   * Report a change in the state of a chart load.
+   *
+   * @param chart the chart being loaded
+   * @param msg the progress message
+   */
+  void loadProgress(final PopChart chart, final String msg);
+
+  /**
+   * The chart has finished loading.  This may be called twice for
+   * one load: first with cached data, and again once the data has
+   * been refreshed.  The chart's panel (from getChartPanel()) shows
+   * the latest data.
+   *
+   * @param chart the chart that was loaded
+   */
+  void loadFinished(final PopChart chart);
+
+  /**
+   * The chart could not be loaded.
+   *
+   * @param chart the chart that failed to load
+   * @param ex the exception
+   */
+  void loadFailed(final PopChart chart, final Exception ex);
+}
@@ -0,0 +1,20 @@
+package io.miti.workchart.app;
+
+import io.miti.workchart.model.PopChart;
+
+/**
+ * Interface for a class notified as the prefetcher loads each chart.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public interface IChartPrefetchListener
+{
+  /**
+   * The chart's data has been loaded.  This is called on the Event
+   * Dispatch Thread.
+   *
+   * @param chart the chart that was loaded
+   */
+  void chartPrefetched(final PopChart chart);
+}
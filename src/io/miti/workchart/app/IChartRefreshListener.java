@@ -0,0 +1,30 @@
+package io.miti.workchart.app;
+
+import io.miti.workchart.model.PopChart;
+
+/**
+ * Interface for a class that shows the charts refreshed by the
+ * refresh scheduler.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public interface IChartRefreshListener
+{
+  /**
+   * Return whether a chart is on screen.  This is called on the
+   * scheduler thread, so it must not block or touch Swing components.
+   *
+   * @param chart the chart
+   * @return whether the chart is visible
+   */
+  boolean isChartVisible(final PopChart chart);
+
+  /**
+   * The chart's data has been refreshed.  This is called on the
+   * Event Dispatch Thread.
+   *
+   * @param chart the chart that was refreshed
+   */
+  void chartRefreshed(final PopChart chart);
+}
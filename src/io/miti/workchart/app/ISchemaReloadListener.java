@@ -0,0 +1,21 @@
+package io.miti.workchart.app;
+
+import io.miti.workchart.model.Node;
+
+/**
+ * Interface for a class notified when the schema file is reloaded.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public interface ISchemaReloadListener
+{
+  /**
+   * The URL or credentials of the selected node changed, and the
+   * connection has been moved to the new node.  This is called on the
+   * Event Dispatch Thread.
+   *
+   * @param node the new node
+   */
+  void currentNodeChanged(final Node node);
+}
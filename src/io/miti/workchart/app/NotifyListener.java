@@ -0,0 +1,246 @@
+package io.miti.workchart.app;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import io.miti.workchart.cache.ResultCache;
+import io.miti.workchart.dbutil.Database;
+import io.miti.workchart.model.EnvironmentChart;
+import io.miti.workchart.model.Node;
+import io.miti.workchart.model.PopChart;
+import io.miti.workchart.model.StringNumChart;
+import io.miti.workchart.util.Logger;
+
+/**
+ * Listen for PostgreSQL notifications that a table changed, and
+ * reload only the charts on that table.  The payload of each
+ * notification is the name of the table (an empty payload means every
+ * chart on the channel).  The listener has its own connection, since
+ * a LISTEN belongs to the session, and polls it with a trivial query
+ * so the driver reads any notifications the server has sent.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class NotifyListener
+{
+  /** How often to check for notifications. */
+  private static final long POLL_MILLIS = 500L;
+
+  /** How long to wait before reconnecting after an error. */
+  private static final long RETRY_MILLIS = 10000L;
+
+  /** Refreshes the charts that are on screen. */
+  private final RefreshScheduler scheduler;
+
+  /** The thread polling for notifications. */
+  private Thread thread = null;
+
+
+  /**
+   * Constructor.
+   *
+   * @param refreshScheduler the scheduler that refreshes visible charts
+   */
+  public NotifyListener(final RefreshScheduler refreshScheduler)
+  {
+    scheduler = refreshScheduler;
+  }
+
+
+  /**
+   * Start listening on a node for the channels of a list of charts.
+   * Any listener already running is stopped.
+   *
+   * @param node the node
+   * @param charts the charts
+   */
+  public synchronized void listen(final Node node, final List<PopChart> charts)
+  {
+    stop();
+
+    // Get the channels the charts listen on
+    final Set<String> channels = new LinkedHashSet<String>(5);
+    for (PopChart chart : charts)
+    {
+      final String channel = chart.getNotifyChannel();
+      if ((channel != null) && (channel.length() > 0))
+      {
+        channels.add(channel);
+      }
+    }
+
+    if ((node == null) || channels.isEmpty())
+    {
+      return;
+    }
+
+    final List<PopChart> chartList = new ArrayList<PopChart>(charts);
+    thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        runListener(node, channels, chartList);
+      }
+    }, "chart-notify");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+  /**
+   * Stop listening.
+   */
+  public synchronized void stop()
+  {
+    if (thread != null)
+    {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+
+  /**
+   * Connect, listen on the channels and poll for notifications until
+   * the thread is interrupted, reconnecting after errors.
+   *
+   * @param node the node
+   * @param channels the channels
+   * @param charts the charts
+   */
+  private void runListener(final Node node, final Set<String> channels, final List<PopChart> charts)
+  {
+    while (!Thread.currentThread().isInterrupted())
+    {
+      final Connection dbConn = Database.createConnection(node.getUrl(), node.getId(), node.getPw());
+      try
+      {
+        if (dbConn == null)
+        {
+          Logger.warn("Unable to connect for change notifications");
+        }
+        else if (!(dbConn instanceof PGConnection))
+        {
+          Logger.warn("Change notifications need a PostgreSQL connection");
+          return;
+        }
+        else
+        {
+          poll(dbConn, channels, charts, node);
+        }
+      }
+      catch (SQLException sqle)
+      {
+        Logger.warn("Lost the notification connection", sqle);
+      }
+      catch (InterruptedException ie)
+      {
+        return;
+      }
+      finally
+      {
+        Database.closeConnection(dbConn);
+      }
+
+      // Try again after a delay
+      try
+      {
+        Thread.sleep(RETRY_MILLIS);
+      }
+      catch (InterruptedException ie)
+      {
+        return;
+      }
+    }
+  }
+
+
+  /**
+   * Listen on the channels and poll for notifications.
+   *
+   * @param dbConn the connection
+   * @param channels the channels
+   * @param charts the charts
+   * @param node the node
+   * @throws SQLException a database exception
+   * @throws InterruptedException if the listener is stopped
+   */
+  private void poll(final Connection dbConn, final Set<String> channels,
+                    final List<PopChart> charts, final Node node)
+    throws SQLException, InterruptedException
+  {
+    final Statement stmt = dbConn.createStatement();
+    try
+    {
+      for (String channel : channels)
+      {
+        stmt.execute("LISTEN \"" + channel.replace("\"", "\"\"") + "\"");
+      }
+
+      Logger.info("Listening for changes on " + channels);
+      final PGConnection pgConn = (PGConnection) dbConn;
+      while (true)
+      {
+        // The driver only reads notifications when it talks to the server
+        stmt.execute("select 1");
+        final PGNotification[] notes = pgConn.getNotifications();
+        if (notes != null)
+        {
+          handle(notes, charts, node);
+        }
+
+        Thread.sleep(POLL_MILLIS);
+      }
+    }
+    finally
+    {
+      stmt.close();
+    }
+  }
+
+
+  /**
+   * Drop the data for the charts named by the notifications, and
+   * have the visible ones refreshed.  A burst of notifications for
+   * one table reloads its charts once.
+   *
+   * @param notes the notifications
+   * @param charts the charts
+   * @param node the node
+   */
+  private void handle(final PGNotification[] notes, final List<PopChart> charts, final Node node)
+  {
+    final Set<PopChart> changed = new LinkedHashSet<PopChart>(charts.size());
+    for (PGNotification note : notes)
+    {
+      for (PopChart chart : charts)
+      {
+        if (note.getName().equals(chart.getNotifyChannel()) && chart.isAffectedBy(note.getParameter()))
+        {
+          changed.add(chart);
+        }
+      }
+    }
+
+    for (PopChart chart : changed)
+    {
+      if ((chart instanceof StringNumChart) && !(chart instanceof EnvironmentChart))
+      {
+        ResultCache.getCache().invalidate(((StringNumChart) chart).getResultKey(node));
+      }
+
+      chart.clearCache();
+      scheduler.requestRefresh(chart);
+    }
+  }
+}
@@ -0,0 +1,443 @@
+package io.miti.workchart.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.cache.ResultCache;
+import io.miti.workchart.dbutil.QueryHandle;
+import io.miti.workchart.model.EnvironmentChart;
+import io.miti.workchart.model.GroupingSetsLoader;
+import io.miti.workchart.model.Node;
+import io.miti.workchart.model.PopChart;
+import io.miti.workchart.model.StringNumChart;
+import io.miti.workchart.util.Logger;
+
+/**
+ * Refresh the charts that are on screen at their refresh interval.
+ * The charts that are due at the same time on the same node are
+ * refreshed together, so charts on one table share a scan.  A chart
+ * is never refreshed twice at once, and if its refresh takes longer
+ * than its interval, the interval is doubled (up to a limit) until
+ * the refreshes are quick again.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class RefreshScheduler
+{
+  /** How often to check for charts that are due. */
+  private static final long TICK_MILLIS = 1000L;
+
+  /** The longest interval after backing off, as a multiple of the chart's interval. */
+  private static final int MAX_BACKOFF = 8;
+
+  /** The number of threads that run the refreshes. */
+  private static final int NUM_THREADS = 2;
+
+  /** Checks for charts that are due. */
+  private final ScheduledExecutorService timer;
+
+  /** Runs the refreshes. */
+  private final ExecutorService workers;
+
+  /** The listener for refreshed charts. */
+  private final IChartRefreshListener listener;
+
+  /** The charts to refresh. */
+  private List<PopChart> charts = Collections.emptyList();
+
+  /** The schedule for each chart. */
+  private final Map<PopChart, Schedule> schedules = new IdentityHashMap<PopChart, Schedule>(10);
+
+  /** The charts to refresh on the next tick, whatever their interval. */
+  private final Set<PopChart> requested =
+    Collections.newSetFromMap(new IdentityHashMap<PopChart, Boolean>(10));
+
+  /** The refreshes that are running. */
+  private final List<Refresh> running = new ArrayList<Refresh>(NUM_THREADS);
+
+
+  /**
+   * The refresh schedule for one chart.
+   */
+  private static final class Schedule
+  {
+    /** When the next refresh is due. */
+    private long nextDue;
+
+    /** The current interval, after any back-off. */
+    private long delay;
+
+    /** Whether a refresh is running. */
+    private boolean running = false;
+
+    Schedule(final long now, final long interval)
+    {
+      delay = interval;
+      nextDue = now + interval;
+    }
+  }
+
+
+  /**
+   * A refresh that is running, so it can be cancelled.
+   */
+  private static final class Refresh
+  {
+    /** The handle for the combined queries. */
+    private final QueryHandle handle = new QueryHandle();
+
+    /** The thread running the refresh. */
+    private final Thread thread = Thread.currentThread();
+
+    /** The charts being refreshed. */
+    private final List<PopChart> batch;
+
+    Refresh(final List<PopChart> charts)
+    {
+      batch = charts;
+    }
+
+    /**
+     * Stop the queries for the refresh.
+     */
+    void cancel()
+    {
+      handle.cancel();
+      for (PopChart chart : batch)
+      {
+        chart.cancelLoad(thread);
+      }
+    }
+  }
+
+
+  /**
+   * Constructor.
+   *
+   * @param refreshListener the listener for refreshed charts
+   */
+  public RefreshScheduler(final IChartRefreshListener refreshListener)
+  {
+    listener = refreshListener;
+    final AtomicInteger threadNum = new AtomicInteger(0);
+    final ThreadFactory factory = new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        Thread thread = new Thread(r, "chart-refresh-" + threadNum.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+
+    timer = Executors.newSingleThreadScheduledExecutor(factory);
+    workers = Executors.newFixedThreadPool(NUM_THREADS, factory);
+  }
+
+
+  /**
+   * Set the charts to refresh.  Only charts with a refresh interval
+   * are refreshed.
+   *
+   * @param chartList the charts
+   */
+  public synchronized void setCharts(final List<PopChart> chartList)
+  {
+    charts = new ArrayList<PopChart>(chartList);
+
+    // Keep the schedules of charts that are being refreshed, so
+    // they aren't started again before they finish
+    final Iterator<Schedule> iter = schedules.values().iterator();
+    while (iter.hasNext())
+    {
+      if (!iter.next().running)
+      {
+        iter.remove();
+      }
+    }
+  }
+
+
+  /**
+   * Refresh a chart on the next tick, if it's visible, even if it
+   * has no refresh interval or isn't due.  Requests for the same
+   * chart before the next tick are combined.
+   *
+   * @param chart the chart
+   */
+  public synchronized void requestRefresh(final PopChart chart)
+  {
+    requested.add(chart);
+  }
+
+
+  /**
+   * Start checking for charts that are due.
+   */
+  public void start()
+  {
+    timer.scheduleWithFixedDelay(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          tick();
+        }
+        catch (Exception ex)
+        {
+          Logger.error(ex);
+        }
+      }
+    }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+
+  /**
+   * Cancel the refreshes that are running, such as when the selected
+   * node changes.  The charts are refreshed again when they're due.
+   */
+  public void cancel()
+  {
+    synchronized (running)
+    {
+      for (Refresh refresh : running)
+      {
+        refresh.cancel();
+      }
+    }
+  }
+
+
+  /**
+   * Stop the background threads.
+   */
+  public void shutdown()
+  {
+    cancel();
+    timer.shutdownNow();
+    workers.shutdownNow();
+  }
+
+
+  /**
+   * Find the visible charts that are due, and start refreshing them,
+   * one batch per node.
+   */
+  private void tick()
+  {
+    final Node node = ConnectionCache.getConnectionCache().getCurrentNode();
+    if (node == null)
+    {
+      return;
+    }
+
+    final long now = System.currentTimeMillis();
+    final Map<Object, List<PopChart>> batches = new LinkedHashMap<Object, List<PopChart>>(5);
+    synchronized (this)
+    {
+      for (PopChart chart : charts)
+      {
+        final long interval = chart.getRefreshIntervalMillis();
+        final boolean wanted = requested.contains(chart);
+        if ((interval <= 0L) && !wanted)
+        {
+          continue;
+        }
+
+        Schedule schedule = schedules.get(chart);
+        if (schedule == null)
+        {
+          schedule = new Schedule(now, interval);
+          schedules.put(chart, schedule);
+        }
+
+        // A chart that isn't visible is loaded when it's shown
+        if (!listener.isChartVisible(chart))
+        {
+          requested.remove(chart);
+          continue;
+        }
+        else if (schedule.running || (!wanted && (now < schedule.nextDue)))
+        {
+          continue;
+        }
+
+        requested.remove(chart);
+
+        // Charts on the current node share a batch; a fan-out chart
+        // queries its own set of nodes
+        schedule.running = true;
+        final Object key = ((chart instanceof EnvironmentChart) ? chart : node);
+        List<PopChart> batch = batches.get(key);
+        if (batch == null)
+        {
+          batch = new ArrayList<PopChart>(4);
+          batches.put(key, batch);
+        }
+
+        batch.add(chart);
+      }
+    }
+
+    for (final List<PopChart> batch : batches.values())
+    {
+      workers.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          refresh(node, batch);
+        }
+      });
+    }
+  }
+
+
+  /**
+   * Refresh a batch of charts on one node, and schedule their next
+   * refresh.  This runs on a worker thread.
+   *
+   * @param node the node
+   * @param batch the charts
+   */
+  private void refresh(final Node node, final List<PopChart> batch)
+  {
+    final long start = System.currentTimeMillis();
+    final Refresh refresh = new Refresh(batch);
+    final QueryHandle handle = refresh.handle;
+    synchronized (running)
+    {
+      running.add(refresh);
+    }
+
+    try
+    {
+      // Drop the cached results, so the next load runs the queries.
+      // A fan-out chart's results are cached per node, so it's
+      // refreshed directly below.
+      for (PopChart chart : batch)
+      {
+        if (chart instanceof EnvironmentChart)
+        {
+          continue;
+        }
+        else if (chart instanceof StringNumChart)
+        {
+          ResultCache.getCache().invalidate(((StringNumChart) chart).getResultKey(node));
+        }
+
+        chart.clearCache();
+      }
+
+      // Load the charts on the same table with one scan
+      for (List<PopChart> group : GroupingSetsLoader.groupByTable(batch))
+      {
+        if (group.size() > 1)
+        {
+          // Only complete results are cached, so a failed query
+          // leaves each chart to run its own
+          GroupingSetsLoader.load(node, group, handle);
+        }
+      }
+
+      for (final PopChart chart : batch)
+      {
+        if (handle.isCancelled())
+        {
+          break;
+        }
+        else if (chart instanceof EnvironmentChart)
+        {
+          chart.refreshData();
+        }
+        else
+        {
+          chart.loadData();
+        }
+
+        // A cancelled refresh may have data from the old node
+        if (handle.isCancelled())
+        {
+          break;
+        }
+
+        SwingUtilities.invokeLater(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            listener.chartRefreshed(chart);
+          }
+        });
+      }
+    }
+    catch (Exception ex)
+    {
+      Logger.error(ex);
+    }
+    finally
+    {
+      synchronized (running)
+      {
+        running.remove(refresh);
+      }
+
+      reschedule(batch, System.currentTimeMillis() - start);
+    }
+  }
+
+
+  /**
+   * Schedule the next refresh for a batch of charts, backing off
+   * if the refresh took longer than the interval.
+   *
+   * @param batch the charts
+   * @param elapsed how long the refresh took, in milliseconds
+   */
+  private synchronized void reschedule(final List<PopChart> batch, final long elapsed)
+  {
+    final long now = System.currentTimeMillis();
+    for (PopChart chart : batch)
+    {
+      final Schedule schedule = schedules.get(chart);
+      if (schedule == null)
+      {
+        continue;
+      }
+
+      final long interval = chart.getRefreshIntervalMillis();
+      if ((interval > 0L) && (elapsed > interval))
+      {
+        schedule.delay = Math.min(schedule.delay * 2L, interval * MAX_BACKOFF);
+        Logger.info("Refreshing " + chart.getTitle() + " took " + elapsed
+                    + " ms; next refresh in " + schedule.delay + " ms");
+      }
+      else
+      {
+        schedule.delay = interval;
+      }
+
+      schedule.running = false;
+      schedule.nextDue = now + schedule.delay;
+    }
+  }
+}
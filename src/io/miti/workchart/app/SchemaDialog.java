@@ -11,6 +11,7 @@ import java.awt.event.KeyEvent;
 import java.sql.Connection;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -27,11 +28,13 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
+import javax.swing.SwingWorker;
 
 import io.miti.workchart.cache.ConnectionCache;
 import io.miti.workchart.cache.SchemaCache;
 import io.miti.workchart.dbutil.Database;
 import io.miti.workchart.model.Node;
+import io.miti.workchart.util.Logger;
 import io.miti.workchart.util.WindowState;
 
 public final class SchemaDialog extends JDialog
@@ -160,6 +163,8 @@ public final class SchemaDialog extends JDialog
     final Node selNode = SchemaCache.getCache().getNode(envName, schemaName);
     WorkChart.getApp().setStatusBarText(selNode.getStatusString());
     ConnectionCache.getConnectionCache().setConnection(selNode);
+    WorkChart.getApp().prefetchCharts();
+    WorkChart.getApp().listenForChanges();
   }
   
   
@@ -248,9 +253,9 @@ public final class SchemaDialog extends JDialog
   {
     // Create the combo box
     final List<String> envs = SchemaCache.getCache().getEnvironments();
-    envs.add(0, "Select one");
-    String[] envNames = new String[envs.size()];
-    int i = 0;
+    String[] envNames = new String[envs.size() + 1];
+    envNames[0] = "Select one";
+    int i = 1;
     for (String env : envs)
     {
       envNames[i++] = env;
@@ -330,18 +335,64 @@ public final class SchemaDialog extends JDialog
     // Get the parameters for the connection - url, ID, PW
     String schema = (String) cbEnvs.getSelectedItem();
     String name = (String) cbNodes.getSelectedItem();
-    Node node = SchemaCache.getCache().getNode(schema, name);
-    // System.out.println(node.toString());
-    
-    // Check the connection
-    Connection conn = Database.createConnection(node.getUrl(), node.getId(), node.getPw());
-    boolean isValid = (conn != null);
-    if (isValid)
+    final Node node = SchemaCache.getCache().getNode(schema, name);
+    if (node == null)
     {
-      Database.closeConnection(conn);
-      conn = null;
+      return;
     }
     
+    // Open a new connection in the background, instead of borrowing one
+    // from the pool, which could wait on the charts' queries and
+    // wouldn't test connecting
+    btnTestConn.setEnabled(false);
+    new SwingWorker<Boolean, Void>()
+    {
+      @Override
+      protected Boolean doInBackground()
+      {
+        Connection conn = Database.createConnection(node.getUrl(), node.getId(), node.getPw());
+        boolean isValid = (conn != null);
+        if (isValid)
+        {
+          Database.closeConnection(conn);
+          conn = null;
+        }
+        
+        return Boolean.valueOf(isValid);
+      }
+      
+      
+      @Override
+      protected void done()
+      {
+        btnTestConn.setEnabled(true);
+        boolean isValid = false;
+        try
+        {
+          isValid = get().booleanValue();
+        }
+        catch (InterruptedException ie)
+        {
+          Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ee)
+        {
+          Logger.error("Unable to test the connection", ee);
+        }
+        
+        showTestResult(isValid);
+      }
+    }.execute();
+  }
+  
+  
+  /**
+   * Show the result of testing a connection.
+   * 
+   * @param isValid whether the connection could be opened
+   */
+  private void showTestResult(final boolean isValid)
+  {
     if (isValid)
     {
       JOptionPane.showMessageDialog(this, "The database connection is valid", "DB Status",
@@ -365,27 +416,29 @@ public final class SchemaDialog extends JDialog
       
       tfUser.setText("Select one");
       
-      cbNodes.removeAllItems();
-      DefaultComboBoxModel<String> olapModel = (DefaultComboBoxModel<String>) cbNodes.getModel();
-      olapModel.addElement("Select one");
+      cbNodes.setModel(new DefaultComboBoxModel<String>(new String[] {"Select one"}));
     }
     else
     {
-      cbNodes.removeAllItems();
-      
       // Populate cbOlap and tfOlapUser, enable test
       cbNodes.setEnabled(true);
       btnTestConn.setEnabled(true);
       tfUser.setText("");
       
-      // Iterate over the nodes
+      // Replace the model in one step, rather than adding each node
+      // to the combo box and firing an event for each one
       List<Node> olapSchemas = SchemaCache.getCache().getSchemas(src);
-      DefaultComboBoxModel<String> olapModel = (DefaultComboBoxModel<String>) cbNodes.getModel();
+      String[] names = new String[olapSchemas.size()];
+      int i = 0;
       for (Node node : olapSchemas)
       {
-        olapModel.addElement(node.getNode());
+        names[i++] = node.getNode();
+      }
+      cbNodes.setModel(new DefaultComboBoxModel<String>(names));
+      if (!olapSchemas.isEmpty())
+      {
+        tfUser.setText(olapSchemas.get(0).getId());
       }
-      tfUser.setText(olapSchemas.get(0).getId());
     }
   }
 }
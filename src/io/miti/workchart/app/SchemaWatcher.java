@@ -0,0 +1,240 @@
+package io.miti.workchart.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.cache.ResultCache;
+import io.miti.workchart.cache.SchemaCache;
+import io.miti.workchart.model.Node;
+import io.miti.workchart.util.Content;
+import io.miti.workchart.util.Logger;
+
+/**
+ * Watch the schema file, and reload the schemas when it changes, so
+ * nodes can be added or retired without restarting.  The connections
+ * and cached results for a node are only dropped if it was removed,
+ * or its URL or credentials changed, so the selected node keeps its
+ * connection and loaded charts when other nodes change.  If the
+ * selected node changed, the connection is moved to the new node and
+ * the listener is told; if it was removed, it's kept until another
+ * node is selected.
+ *
+ * The file can only be watched if it's on the file system, and not
+ * in the jar.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class SchemaWatcher
+{
+  /** The name of the schema file. */
+  private static final String SCHEMA_FILE = "schema.xml";
+
+  /** How long the file must be unchanged before it's read, in milliseconds. */
+  private static final long QUIET_MILLIS = 500L;
+
+  /** Notified when the selected node changes. */
+  private final ISchemaReloadListener listener;
+
+  /** The thread watching the file. */
+  private Thread thread = null;
+
+
+  /**
+   * Constructor.
+   *
+   * @param reloadListener notified when the selected node changes
+   */
+  public SchemaWatcher(final ISchemaReloadListener reloadListener)
+  {
+    listener = reloadListener;
+  }
+
+
+  /**
+   * Start watching the schema file.
+   */
+  public synchronized void start()
+  {
+    if (thread != null)
+    {
+      return;
+    }
+
+    final File file = Content.getFile(SCHEMA_FILE);
+    if ((file == null) || !file.isFile())
+    {
+      Logger.info("The schema file is not on the file system, so it won't be reloaded");
+      return;
+    }
+
+    final Path path = file.getAbsoluteFile().toPath();
+    thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          watch(path);
+        }
+        catch (InterruptedException ie)
+        {
+          // The watcher was stopped
+        }
+        catch (ClosedWatchServiceException cwse)
+        {
+          // The watcher was stopped
+        }
+        catch (IOException ioe)
+        {
+          Logger.error(ioe);
+        }
+      }
+    }, "schema-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+  /**
+   * Stop watching.
+   */
+  public synchronized void stop()
+  {
+    if (thread != null)
+    {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+
+  /**
+   * Watch the file until the thread is interrupted.  Editors can write
+   * a file in several steps, or replace it, so the directory is
+   * watched, and the file is read once it stops changing.
+   *
+   * @param path the file
+   * @throws IOException if the directory can't be watched
+   * @throws InterruptedException if the watcher is stopped
+   */
+  private void watch(final Path path) throws IOException, InterruptedException
+  {
+    final Path fileName = path.getFileName();
+    final WatchService service = path.getFileSystem().newWatchService();
+    try
+    {
+      path.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY);
+      while (!Thread.currentThread().isInterrupted())
+      {
+        boolean changed = isChanged(service.take(), fileName);
+        WatchKey key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        while (key != null)
+        {
+          changed = isChanged(key, fileName) || changed;
+          key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        if (changed)
+        {
+          reload();
+        }
+      }
+    }
+    finally
+    {
+      service.close();
+    }
+  }
+
+
+  /**
+   * Check the events for a change to the file, and reset the key.
+   *
+   * @param key the key
+   * @param fileName the name of the file
+   * @return whether the file changed
+   * @throws IOException if the directory can no longer be watched
+   */
+  private static boolean isChanged(final WatchKey key, final Path fileName) throws IOException
+  {
+    boolean changed = false;
+    for (WatchEvent<?> event : key.pollEvents())
+    {
+      // Events can be dropped, so check the file if they were
+      if ((event.kind() == StandardWatchEventKinds.OVERFLOW) || fileName.equals(event.context()))
+      {
+        changed = true;
+      }
+    }
+
+    if (!key.reset())
+    {
+      throw new IOException("The directory of the schema file can no longer be watched");
+    }
+
+    return changed;
+  }
+
+
+  /**
+   * Reload the schemas, and drop the connections and results for the
+   * nodes that were removed or changed.
+   */
+  private void reload()
+  {
+    final List<Node> staleNodes = SchemaCache.getCache().reloadCache();
+    if (staleNodes == null)
+    {
+      // The file may be half-written, so wait for the next change
+      Logger.warn("Unable to reload the schema file");
+      return;
+    }
+
+    final ConnectionCache connCache = ConnectionCache.getConnectionCache();
+    final Node current = connCache.getCurrentNode();
+    for (Node node : staleNodes)
+    {
+      if (!node.equals(current))
+      {
+        connCache.closePool(node);
+        ResultCache.getCache().invalidate(node);
+        continue;
+      }
+
+      final Node newNode = SchemaCache.getCache().getNode(node.getSchema(), node.getNode());
+      if (newNode == null)
+      {
+        Logger.warn("The selected node was removed from the schema file: " + node.getStatusString());
+        continue;
+      }
+
+      // Move the connection to the new node, then let the charts reload
+      Logger.info("The selected node changed: " + node.getStatusString());
+      connCache.setConnection(newNode);
+      connCache.closePool(node);
+      ResultCache.getCache().invalidate(node);
+      SwingUtilities.invokeLater(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          listener.currentNodeChanged(newNode);
+        }
+      });
+    }
+  }
+}
@@ -4,17 +4,24 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Event;
 import java.awt.FlowLayout;
+import java.awt.Frame;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.BorderFactory;
+import javax.swing.DefaultComboBoxModel;
+import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JComponent;
@@ -23,19 +30,23 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.SoftBevelBorder;
 
 import org.jfree.chart.ChartPanel;
-import org.jfree.chart.JFreeChart;
 
 import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.cache.PoolStats;
+import io.miti.workchart.cache.ResultCache;
 import io.miti.workchart.cache.SchemaCache;
+import io.miti.workchart.model.ChartCatalog;
 import io.miti.workchart.model.Node;
 import io.miti.workchart.model.PopChart;
-import io.miti.workchart.model.StringNumChart;
+import io.miti.workchart.util.BusyScreen;
 import io.miti.workchart.util.Content;
+import io.miti.workchart.util.Logger;
 import io.miti.workchart.util.OSXAdapter;
 import io.miti.workchart.util.Utility;
 import io.miti.workchart.util.WindowState;
@@ -66,6 +77,45 @@ public class WorkChart
   /** The combo box of charts. */
   private JComboBox<String> cbCharts = null;
   
+  /** Loads the chart data in the background. */
+  private ChartLoader chartLoader = null;
+  
+  /** Loads all of the charts in the background after connecting. */
+  private ChartPrefetcher prefetcher = null;
+  
+  /** Refreshes the chart on screen at its refresh interval. */
+  private RefreshScheduler refreshScheduler = null;
+  
+  /** Reloads charts when the database reports their table changed. */
+  private NotifyListener notifyListener = null;
+  
+  /** Images of the loaded charts, shown while a chart's panel is built. */
+  private ChartImageCache imageCache = null;
+  
+  /** Reloads the schemas when the schema file changes. */
+  private SchemaWatcher schemaWatcher = null;
+  
+  /** Reports when the Event Dispatch Thread is blocked. */
+  private EdtWatchdog edtWatchdog = null;
+  
+  /** Opens the dialog to select the sources, once the schemas are loaded. */
+  private Action srcAction = null;
+  
+  /** Whether to exit once started, for a class data sharing training run. */
+  private static boolean exitAfterStartup = false;
+  
+  /** When the application started, for the startup timings. */
+  private static long startNanos = 0L;
+  
+  /** The chart on screen, read by the refresh scheduler. */
+  private volatile PopChart visibleChart = null;
+  
+  /** Shows the wait cursor while a chart is loading. */
+  private BusyScreen busyScreen = null;
+  
+  /** The status bar text to restore after a chart load. */
+  private String statusText = null;
+  
   static
   {
     app = new WorkChart();
@@ -85,17 +135,41 @@ public class WorkChart
    */
   private void createGUI()
   {
-    // Load the properties file
-    windowState = WindowState.getInstance();
-    
-    // Determine whether we're running in Eclipse or as a stand-alone jar
-    checkInputFileSource();
+    final long phaseStart = System.nanoTime();
     
-    // Load the schemas
-    SchemaCache.getCache().loadCache();
+    // The charts are added when the startup thread has created them
+    windowState = WindowState.getInstance();
+    chartData = new ArrayList<PopChart>(0);
     
-    // Create the chart array
-    populateCharts();
+    // Create the background chart loader
+    initChartLoader();
+    imageCache = new ChartImageCache();
+    prefetcher = new ChartPrefetcher(new IChartPrefetchListener()
+    {
+      @Override
+      public void chartPrefetched(final PopChart chart)
+      {
+        // The chart on screen doesn't need an image until it's replaced
+        if (chart != visibleChart)
+        {
+          imageCache.prerender(chart);
+        }
+      }
+    });
+    initRefreshScheduler();
+    notifyListener = new NotifyListener(refreshScheduler);
+    schemaWatcher = new SchemaWatcher(new ISchemaReloadListener()
+    {
+      @Override
+      public void currentNodeChanged(final Node node)
+      {
+        // The loaded charts came from the old URL, so load them again
+        resetCharts();
+        setStatusBarText(node.getStatusString());
+        prefetchCharts();
+        listenForChanges();
+      }
+    });
     
     // Set up the frame
     setupFrame();
@@ -120,38 +194,132 @@ public class WorkChart
     frame.pack();
     frame.setVisible(true);
     frame.setIconImage(Content.getIcon("appicon.png").getImage());
-    
-    // Check if a schema needs to be set
-    checkSchema();
+    logPhase("frame", phaseStart);
+    setStatusBarText("Connecting...");
   }
   
   
-  private void checkSchema()
+  /**
+   * Create the charts, load the schemas and connect to the saved
+   * node on a background thread, while the frame is built on the
+   * Event Dispatch Thread.  Creating the charts there also loads the
+   * chart classes off the Event Dispatch Thread.
+   */
+  private void startBackgroundInit()
+  {
+    final Thread thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        long phaseStart = System.nanoTime();
+        final List<PopChart> charts = populateCharts();
+        logPhase("charts", phaseStart);
+        
+        phaseStart = System.nanoTime();
+        SchemaCache.getCache().loadCache();
+        logPhase("schemas", phaseStart);
+        
+        // Show the charts, then connect to the saved node
+        SwingUtilities.invokeLater(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            setCharts(charts);
+          }
+        });
+        
+        phaseStart = System.nanoTime();
+        final Node node = getSavedNode();
+        if (node != null)
+        {
+          ConnectionCache.getConnectionCache().setConnection(node);
+          logPhase("connection", phaseStart);
+        }
+        
+        SwingUtilities.invokeLater(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            checkSchema(node);
+          }
+        });
+      }
+    }, "startup");
+    thread.setDaemon(true);
+    thread.start();
+  }
+  
+  
+  /**
+   * Return the node saved in the properties file.
+   * 
+   * @return the node, or null if there isn't one or it's not in the schemas
+   */
+  private static Node getSavedNode()
   {
-    // See if a schema has been set
     final String env = WindowState.getInstance().getEnvironment();
     final String schema = WindowState.getInstance().getSchema();
-    boolean selectSchema = false;
     if ((env == null) || (env.length() < 1) || (env.startsWith("Select")))
     {
-      selectSchema = true;
+      return null;
+    }
+    
+    return SchemaCache.getCache().getNode(env, schema);
+  }
+  
+  
+  /**
+   * Show the charts created by the startup thread.  They can be
+   * selected once the startup is finished.
+   * 
+   * @param charts the charts
+   */
+  private void setCharts(final List<PopChart> charts)
+  {
+    chartData = charts;
+    cbCharts.setModel(new DefaultComboBoxModel<String>(PopChart.getChartTitles(chartData, true)));
+    refreshScheduler.setCharts(chartData);
+    
+    // The schemas are loaded before the charts are shown
+    srcAction.setEnabled(true);
+  }
+  
+  
+  /**
+   * Finish the startup, once the saved node (if any) is connected.
+   * 
+   * @param node the saved node, or null if there isn't one
+   */
+  private void checkSchema(final Node node)
+  {
+    cbCharts.setEnabled(true);
+    if (node != null)
+    {
+      setStatusBarText(node.getStatusString());
+      prefetchCharts();
+      listenForChanges();
     }
     else
     {
-      final Node node = SchemaCache.getCache().getNode(env, schema);
-      if (node == null)
-      {
-        selectSchema = true;
-      }
-      else
-      {
-        WorkChart.getApp().setStatusBarText(node.getStatusString());
-        ConnectionCache.getConnectionCache().setConnection(node);
-      }
+      setStatusBarText(null);
+    }
+    
+    logPhase("total", startNanos);
+    if (exitAfterStartup)
+    {
+      // Load the dialog's classes too, then exit without saving the
+      // window state
+      new SchemaDialog(frame, "Select Sources", true, true).dispose();
+      System.exit(0);
     }
     
+    schemaWatcher.start();
+    
     // Either there was no saved schema, or the schema could not be found
-    if (selectSchema)
+    if (node == null)
     {
       JOptionPane.showMessageDialog(frame, "Please select a database on the next screen",
                   "Database Selection Required", JOptionPane.WARNING_MESSAGE);
@@ -164,6 +332,12 @@ public class WorkChart
   {
     cbCharts.setSelectedIndex(0);
     
+    // Stop any chart that's still loading
+    chartLoader.cancel();
+    prefetcher.cancel();
+    refreshScheduler.cancel();
+    imageCache.clear();
+    
     // Clear the cache for the charts
     if (chartData != null)
     {
@@ -176,19 +350,62 @@ public class WorkChart
   
   
   /**
-   * Create some chart objects.
+   * Load all of the charts in the background against the selected
+   * node, if prefetching is turned on.
+   */
+  public void prefetchCharts()
+  {
+    if (WindowState.getInstance().shouldPrefetch())
+    {
+      prefetcher.prefetch(ConnectionCache.getConnectionCache().getCurrentNode(), chartData);
+    }
+  }
+  
+  
+  /**
+   * Listen for notifications of changes to the charts' tables on
+   * the selected node.
    */
-  private void populateCharts()
+  public void listenForChanges()
   {
-    // Create some chart options for the dropdown combo box
-    chartData = new ArrayList<PopChart>(5);
-    final boolean legend = true;
-    final boolean urls = false;
-    
-    chartData.add(new StringNumChart("Field1 in Table1",
-        "table1", "field1", true, legend, urls));
-    chartData.add(new StringNumChart("Field2 in Tabl2",
-        "table2", "field2", true, legend, urls));
+    notifyListener.listen(ConnectionCache.getConnectionCache().getCurrentNode(), chartData);
+  }
+  
+  
+  /**
+   * Create the chart objects.
+   * 
+   * @return the charts
+   */
+  private static List<PopChart> populateCharts()
+  {
+    // Create the chart options for the dropdown combo box
+    final List<PopChart> charts = ChartCatalog.createCharts();
+    
+    // Set how often to refresh the chart on screen, and the
+    // channel that reports changes to the tables
+    final WindowState state = WindowState.getInstance();
+    final long refreshMillis = state.getRefreshSeconds() * 1000L;
+    final String channel = state.getNotifyChannel();
+    for (PopChart chart : charts)
+    {
+      chart.setRefreshIntervalMillis(refreshMillis);
+      chart.setNotifyChannel(channel);
+    }
+    
+    return charts;
+  }
+  
+  
+  /**
+   * Log how long a startup phase took.
+   * 
+   * @param phase the name of the phase
+   * @param phaseStart when the phase started, from System.nanoTime()
+   */
+  private static void logPhase(final String phase, final long phaseStart)
+  {
+    Logger.info("Startup " + phase + ": " + ((System.nanoTime() - phaseStart) / 1000000L) + "ms");
   }
   
   
@@ -241,6 +458,7 @@ public class WorkChart
     final int spacing = 15;
     topPanel.setBorder(BorderFactory.createEmptyBorder(spacing, spacing, spacing, spacing));
     cbCharts = new JComboBox<String>(chartTitles);
+    cbCharts.setEnabled(false);
     cbCharts.addActionListener(new ActionListener()
     {
       @Override
@@ -252,8 +470,9 @@ public class WorkChart
     });
     topPanel.add(cbCharts);
     
-    // Add a button to set the database sources
-    Action srcAction = new AbstractAction("Source")
+    // Add a button to set the database sources.  It's enabled once
+    // the startup thread has loaded the schemas.
+    srcAction = new AbstractAction("Source")
     {
       private static final long serialVersionUID = 1L;
 
@@ -263,6 +482,7 @@ public class WorkChart
         showSchemaDialog(true);
       }
     };
+    srcAction.setEnabled(false);
     final JButton btnSources = new JButton(srcAction);
     btnSources.setMnemonic(KeyEvent.VK_S);
     btnSources.getActionMap().put("openSources", srcAction);
@@ -274,6 +494,14 @@ public class WorkChart
     chartPanel = new JPanel(new BorderLayout());
     chartPanel.setBackground(Color.WHITE);
     chartPanel.add(new JLabel(""), BorderLayout.CENTER);
+    chartPanel.addComponentListener(new ComponentAdapter()
+    {
+      @Override
+      public void componentResized(final ComponentEvent e)
+      {
+        imageCache.setSize(chartPanel.getSize());
+      }
+    });
     
     // Set up the middle panel
     JPanel appPanel = new JPanel(new BorderLayout());
@@ -295,34 +523,144 @@ public class WorkChart
   
   private void loadChartFor(final int chartNum)
   {
-    // Remove any existing chart
+    // Draw the chart being replaced, so it can be shown right away
+    // if it's selected again
+    if (visibleChart != null)
+    {
+      imageCache.prerender(visibleChart);
+    }
+    
+    // Remove any existing chart, and stop any chart that's still loading
+    edtWatchdog.setChart((chartNum < 1) ? null : chartData.get(chartNum - 1));
+    chartLoader.cancel();
     chartPanel.removeAll();
+    visibleChart = null;
     if (chartNum < 1)
     {
+      endChartLoad();
       frame.invalidate();
       frame.repaint();
       frame.pack();
       return;
     }
     
+    // Show the chart's image, or a placeholder, while the data loads
+    // in the background and the chart panel is built
     PopChart root = chartData.get(chartNum - 1);
-    JFreeChart chart = root.getFreeChart();
-    
-    // Create a dataset
-//    DefaultPieDataset dataset = new DefaultPieDataset();
-//    dataset.setValue("Category 1", 43.2);
-//    dataset.setValue("Category 2", 27.9);
-//    dataset.setValue("Category 3", 79.5);
-    
-    // Create a pie chart - with legend and tooltips, but no URLs
-//    JFreeChart chart = ChartFactory.createPieChart("Sample Pie Chart " + chartNum,
-//                          dataset, true, true, false);
+    final BufferedImage image = imageCache.getImage(root);
+    if (image != null)
+    {
+      chartPanel.add(new JLabel(new ImageIcon(image)), BorderLayout.CENTER);
+    }
+    else
+    {
+      chartPanel.add(new JLabel("Loading...", JLabel.CENTER), BorderLayout.CENTER);
+    }
+    chartPanel.revalidate();
+    chartPanel.repaint();
     
-    // Add the chart
-    chartPanel.add(new ChartPanel(chart), BorderLayout.CENTER);
+    root.setPlotWidth(chartPanel.getWidth());
+    visibleChart = root;
+    chartLoader.load(root);
+  }
+  
+  
+  /**
+   * Create the loader that runs chart queries in the background.
+   */
+  private void initChartLoader()
+  {
+    chartLoader = new ChartLoader(new IChartLoadListener()
+    {
+      @Override
+      public void loadProgress(final PopChart chart, final String msg)
+      {
+        // Save the current status and show the wait cursor
+        if (busyScreen == null)
+        {
+          statusText = statusBar.getText();
+          busyScreen = new BusyScreen().startWork();
+        }
+        
+        statusBar.setText(msg);
+      }
+      
+      @Override
+      public void loadFinished(final PopChart chart)
+      {
+        endChartLoad();
+        
+        // The chart keeps its panel, so if it's already showing,
+        // getting it just updates the data
+        final ChartPanel panel = chart.getChartPanel();
+        if (panel.getParent() == chartPanel)
+        {
+          return;
+        }
+        
+        // Add the chart
+        chartPanel.removeAll();
+        chartPanel.add(panel, BorderLayout.CENTER);
+        
+        // Update the frame layout
+        frame.pack();
+      }
+      
+      @Override
+      public void loadFailed(final PopChart chart, final Exception ex)
+      {
+        endChartLoad();
+        
+        chartPanel.removeAll();
+        chartPanel.add(new JLabel("Unable to load the chart", JLabel.CENTER), BorderLayout.CENTER);
+        chartPanel.revalidate();
+        chartPanel.repaint();
+      }
+    });
+  }
+  
+  
+  /**
+   * Create the scheduler that refreshes the chart on screen.
+   */
+  private void initRefreshScheduler()
+  {
+    refreshScheduler = new RefreshScheduler(new IChartRefreshListener()
+    {
+      @Override
+      public boolean isChartVisible(final PopChart chart)
+      {
+        return ((chart == visibleChart) && ((frame.getExtendedState() & Frame.ICONIFIED) == 0));
+      }
+      
+      @Override
+      public void chartRefreshed(final PopChart chart)
+      {
+        // Update the chart if it's still on screen and not being loaded
+        if ((chart == visibleChart) && (busyScreen == null))
+        {
+          chart.getChartPanel();
+        }
+      }
+    });
     
-    // Update the frame layout
-    frame.pack();
+    refreshScheduler.setCharts(chartData);
+    refreshScheduler.start();
+  }
+  
+  
+  /**
+   * Reset the cursor and status bar after a chart load ends.
+   */
+  private void endChartLoad()
+  {
+    if (busyScreen != null)
+    {
+      busyScreen.stopWork();
+      busyScreen = null;
+      setStatusBarText(statusText);
+      statusText = null;
+    }
   }
   
   
@@ -346,6 +684,12 @@ public class WorkChart
   
   public void setStatusBarText(final String msg)
   {
+    // If a chart is loading, restore this text once it's done
+    if (busyScreen != null)
+    {
+      statusText = msg;
+    }
+    
     if (msg == null)
     {
       statusBar.setText("Ready");
@@ -364,7 +708,24 @@ public class WorkChart
   {
     // System.out.println("Exiting the application...");
     
-    // Close any connections
+    // Stop the chart loader
+    chartLoader.shutdown();
+    prefetcher.shutdown();
+    refreshScheduler.shutdown();
+    notifyListener.stop();
+    schemaWatcher.stop();
+    imageCache.shutdown();
+    edtWatchdog.stop();
+    
+    Logger.info("Result cache: " + ResultCache.getCache().getStats());
+    Logger.info("UI stalls: " + edtWatchdog.getStats());
+    
+    // Log the pool statistics, then close any connections
+    for (Map.Entry<Node, PoolStats> entry :
+           ConnectionCache.getConnectionCache().getPoolStats().entrySet())
+    {
+      Logger.info("Pool " + entry.getKey().getStatusString() + ": " + entry.getValue());
+    }
     ConnectionCache.getConnectionCache().closeConnection();
     
     // Store the window state in the properties file
@@ -391,9 +752,9 @@ public class WorkChart
    * Check how the application is run and save information
    * about the input file.
    */
-  private void checkInputFileSource()
+  private static void checkInputFileSource()
   {
-    final java.net.URL url = getClass().getResource("/appicon.png");
+    final java.net.URL url = WorkChart.class.getResource("/appicon.png");
     if (url != null)
     {
       // We're running in a jar file
@@ -414,11 +775,23 @@ public class WorkChart
    */
   public static void main(final String[] args)
   {
+    startNanos = System.nanoTime();
+    exitAfterStartup = ((args.length > 0) && args[0].equals("-exitAfterStartup"));
+    
     // Make the application Mac-compatible
     Utility.makeMacCompatible();
     
     // Load the properties file data
     WindowState.load(PROPS_FILE_NAME);
+    logPhase("properties", startNanos);
+    
+    // Determine whether we're running in Eclipse or as a stand-alone jar
+    checkInputFileSource();
+    
+    // Start watching for the UI thread being blocked, including
+    // while the GUI is created
+    app.edtWatchdog = new EdtWatchdog(WindowState.getInstance().getStallMillis());
+    app.edtWatchdog.start();
     
     // Schedule a job for the event-dispatching thread:
     // creating and showing this application's GUI.
@@ -430,5 +803,8 @@ public class WorkChart
         app.createGUI();
       }
     });
+    
+    // The frame is built first, so this can't finish before it
+    app.startBackgroundInit();
   }
 }
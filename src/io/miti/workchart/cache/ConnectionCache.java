@@ -1,67 +1,384 @@
 package io.miti.workchart.cache;
 
 import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import io.miti.workchart.dbutil.Database;
 import io.miti.workchart.model.Node;
+import io.miti.workchart.util.Logger;
 
 public final class ConnectionCache
 {
+  /** The minimum number of connections kept open for the selected node. */
+  private static final int POOL_MIN_SIZE = 1;
+
+  /** The maximum number of connections per node. */
+  public static final int POOL_MAX_SIZE = 4;
+
+  /** How long an extra connection can stay idle before it's closed. */
+  private static final long POOL_MAX_IDLE_MILLIS = 5L * 60L * 1000L;
+
+  /** How long a connection can be borrowed before it's reported as leaked. */
+  private static final long POOL_LEAK_MILLIS = 2L * 60L * 1000L;
+
+  /** How long to wait for a connection from a pool. */
+  private static final long BORROW_TIMEOUT_MILLIS = 30L * 1000L;
+
+  /** How often to run the pool maintenance, in seconds. */
+  private static final long MAINTENANCE_SECS = 30L;
+
   private static final ConnectionCache cache;
-  private Connection conn = null;
-  
+
+  /** The connection pools, keyed by node. */
+  private final Map<Node, ConnectionPool> pools = new HashMap<Node, ConnectionPool>(5);
+
+  /** The pool each borrowed connection came from. */
+  private final Map<Connection, ConnectionPool> lenders =
+    new IdentityHashMap<Connection, ConnectionPool>(10);
+
+  /** The selected node. */
+  private volatile Node currentNode = null;
+
+  /** Runs the idle eviction and leak detection. */
+  private ScheduledExecutorService maintenance = null;
+
   static
   {
     cache = new ConnectionCache();
   }
-  
+
   private ConnectionCache()
   {
     super();
   }
-  
-  
+
+
   public static ConnectionCache getConnectionCache()
   {
     return cache;
   }
-  
-  
-  public Connection getConnection()
+
+
+  /**
+   * Return the selected node.
+   *
+   * @return the selected node, or null if none is selected
+   */
+  public Node getCurrentNode()
   {
-    // Get the connection for the schema name
-    if (conn == null)
+    return currentNode;
+  }
+
+
+  /**
+   * Borrow a connection to the selected node.  The connection
+   * must be handed back with releaseConnection().
+   *
+   * @return a connection, or null if none is available
+   */
+  public Connection borrowConnection()
+  {
+    final Node node = currentNode;
+    if (node == null)
     {
       System.err.println("Error: No connection found");
+      return null;
     }
-    
+
+    return borrowConnection(node);
+  }
+
+
+  /**
+   * Borrow a connection to a node.  The connection must be handed
+   * back with releaseConnection().
+   *
+   * @param node the node
+   * @return a connection, or null if none is available
+   */
+  public Connection borrowConnection(final Node node)
+  {
+    final ConnectionPool pool = getPool(node);
+    if (pool == null)
+    {
+      return null;
+    }
+
+    final Connection conn = pool.borrow(BORROW_TIMEOUT_MILLIS);
+    if (conn != null)
+    {
+      synchronized (lenders)
+      {
+        lenders.put(conn, pool);
+      }
+    }
+
     return conn;
   }
-  
-  
+
+
+  /**
+   * Return a borrowed connection to the selected node's pool.
+   *
+   * @param conn the connection
+   */
+  public void releaseConnection(final Connection conn)
+  {
+    releaseConnection(currentNode, conn);
+  }
+
+
+  /**
+   * Return a borrowed connection to the pool it came from.  That
+   * may not be the node's current pool, if the pool was closed and
+   * opened again while the connection was out.
+   *
+   * @param node the node the connection was borrowed for
+   * @param conn the connection
+   */
+  public void releaseConnection(final Node node, final Connection conn)
+  {
+    if (conn == null)
+    {
+      return;
+    }
+
+    final ConnectionPool pool;
+    synchronized (lenders)
+    {
+      pool = lenders.remove(conn);
+    }
+
+    if (pool != null)
+    {
+      // If the pool was closed, it closes the connection
+      pool.release(conn);
+    }
+    else
+    {
+      Logger.warn("Released a connection that was not borrowed"
+          + ((node == null) ? "" : (" for " + node.getStatusString())));
+      Database.closeConnection(conn);
+    }
+  }
+
+
   public void setConnection(final Node node)
   {
-    closeConnection();
-    
+    // Close the previous node's pool, so it doesn't hold a connection open
+    final Node previous = currentNode;
+    currentNode = node;
+    if ((previous != null) && !previous.equals(node))
+    {
+      closePool(previous);
+    }
+
     // Check if node is null
     if (node == null)
     {
       System.err.println("Turning off the connection (node is null)");
       return;
     }
-    
-    // Create the connection
-    conn = Database.createConnection(node.getUrl(), node.getId(), node.getPw());
+
+    // Keep a connection open for the selected node's charts
+    final ConnectionPool pool = getPool(node);
+    if (pool != null)
+    {
+      pool.setMinSize(POOL_MIN_SIZE);
+    }
+
+    // Open a connection now, so the pool is warm for the first chart
+    final Connection conn = borrowConnection(node);
+    releaseConnection(node, conn);
+  }
+
+
+  /**
+   * Return the pool statistics for each node.
+   *
+   * @return the statistics, keyed by node
+   */
+  public Map<Node, PoolStats> getPoolStats()
+  {
+    final List<ConnectionPool> list;
+    synchronized (pools)
+    {
+      list = new ArrayList<ConnectionPool>(pools.values());
+    }
+
+    final Map<Node, PoolStats> stats = new HashMap<Node, PoolStats>(list.size());
+    for (ConnectionPool pool : list)
+    {
+      stats.put(pool.getNode(), pool.getStats());
+    }
+
+    return stats;
+  }
+
+
+  /**
+   * Close the pool for a node, such as when its URL or credentials
+   * change.  Connections borrowed from it are closed when they're
+   * handed back.
+   *
+   * @param node the node
+   */
+  public void closePool(final Node node)
+  {
+    final ConnectionPool pool;
+    synchronized (pools)
+    {
+      pool = pools.remove(node);
+    }
+
+    if (pool != null)
+    {
+      pool.close();
+    }
   }
 
 
   public void closeConnection()
   {
-    // Close any database connections
-    if (conn != null)
+    // Close all of the pools
+    final List<ConnectionPool> list;
+    synchronized (pools)
     {
-      Database.closeConnection(conn);
-      conn = null;
+      list = new ArrayList<ConnectionPool>(pools.values());
+      pools.clear();
+
+      if (maintenance != null)
+      {
+        maintenance.shutdownNow();
+        maintenance = null;
+      }
+    }
+
+    for (ConnectionPool pool : list)
+    {
+      pool.close();
     }
   }
+
+
+  /**
+   * Get the pool for a node, creating it if necessary.  Only the
+   * selected node's pool keeps connections open when it's idle.
+   *
+   * @param node the node
+   * @return the pool
+   */
+  private ConnectionPool getPool(final Node node)
+  {
+    if (node == null)
+    {
+      return null;
+    }
+
+    synchronized (pools)
+    {
+      ConnectionPool pool = pools.get(node);
+      if (pool == null)
+      {
+        final int minSize = (node.equals(currentNode) ? POOL_MIN_SIZE : 0);
+        pool = new ConnectionPool(node, minSize, POOL_MAX_SIZE,
+                                  POOL_MAX_IDLE_MILLIS, POOL_LEAK_MILLIS);
+        pools.put(node, pool);
+        startMaintenance();
+      }
+
+      return pool;
+    }
+  }
+
+
+  /**
+   * Remove the pools, other than the selected node's, that have had
+   * no connections for longer than the idle timeout.
+   *
+   * @param list the pools to check
+   */
+  private void removeUnusedPools(final List<ConnectionPool> list)
+  {
+    final long now = System.currentTimeMillis();
+    for (ConnectionPool pool : list)
+    {
+      final Node node = pool.getNode();
+      if (node.equals(currentNode))
+      {
+        continue;
+      }
+
+      synchronized (pools)
+      {
+        // The pool may have been replaced or used in the meantime
+        if ((pools.get(node) != pool) || !pool.isUnused(now))
+        {
+          continue;
+        }
+
+        pools.remove(node);
+      }
+
+      pool.close();
+    }
+  }
+
+
+  /**
+   * Start the background maintenance of the pools, if it's not running.
+   */
+  private void startMaintenance()
+  {
+    if (maintenance != null)
+    {
+      return;
+    }
+
+    maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        Thread thread = new Thread(r, "pool-maintenance");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    maintenance.scheduleWithFixedDelay(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        final List<ConnectionPool> list;
+        synchronized (pools)
+        {
+          list = new ArrayList<ConnectionPool>(pools.values());
+        }
+
+        for (ConnectionPool pool : list)
+        {
+          try
+          {
+            pool.maintain();
+          }
+          catch (Exception ex)
+          {
+            Logger.error(ex);
+          }
+        }
+
+        removeUnusedPools(list);
+      }
+    }, MAINTENANCE_SECS, MAINTENANCE_SECS, TimeUnit.SECONDS);
+  }
 }
@@ -0,0 +1,537 @@
+package io.miti.workchart.cache;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import io.miti.workchart.dbutil.Database;
+import io.miti.workchart.model.Node;
+import io.miti.workchart.util.Logger;
+
+/**
+ * A pool of database connections for one node.  Connections are
+ * validated when borrowed, idle connections beyond the minimum size
+ * are closed after a while, and connections that are held too long
+ * are reported as possible leaks.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class ConnectionPool
+{
+  /** The number of seconds to wait when validating a connection. */
+  private static final int VALIDATION_TIMEOUT_SECS = 5;
+
+  /** The node the connections are opened against. */
+  private final Node node;
+
+  /** The minimum number of connections to keep open. */
+  private int minSize;
+
+  /** The maximum number of connections to open. */
+  private final int maxSize;
+
+  /** How long a connection can sit idle before it's closed. */
+  private final long maxIdleMillis;
+
+  /** How long a connection can be borrowed before it's reported. */
+  private final long leakMillis;
+
+  /** The idle connections, most recently used first. */
+  private final LinkedList<Entry> idle = new LinkedList<Entry>();
+
+  /** The connections that are lent out. */
+  private final Map<Connection, Entry> borrowed = new IdentityHashMap<Connection, Entry>();
+
+  /** The number of connections open or being opened. */
+  private int total = 0;
+
+  /** Whether the pool has been closed. */
+  private boolean closed = false;
+
+  /** When a connection was last borrowed or returned. */
+  private long lastActive = System.currentTimeMillis();
+
+  // Statistics
+  private long borrows = 0L;
+  private long waits = 0L;
+  private long totalWaitMillis = 0L;
+  private long maxWaitMillis = 0L;
+  private long timeouts = 0L;
+  private long created = 0L;
+  private long destroyed = 0L;
+  private long validationFailures = 0L;
+  private long leaks = 0L;
+
+
+  /**
+   * One pooled connection.
+   */
+  private static final class Entry
+  {
+    /** The physical connection. */
+    final Connection conn;
+
+    /** When the connection was last returned to the pool. */
+    long lastUsed = 0L;
+
+    /** When the connection was borrowed. */
+    long borrowedAt = 0L;
+
+    /** Where the connection was borrowed, for leak reports. */
+    Exception borrowSite = null;
+
+    /** Whether this connection was already reported as leaked. */
+    boolean leakReported = false;
+
+    Entry(final Connection connection)
+    {
+      conn = connection;
+    }
+  }
+
+
+  /**
+   * Constructor.
+   *
+   * @param pNode the node to connect to
+   * @param nMinSize the minimum number of connections to keep
+   * @param nMaxSize the maximum number of connections
+   * @param nMaxIdleMillis how long an extra connection can stay idle
+   * @param nLeakMillis how long a connection can be held before it's reported
+   */
+  ConnectionPool(final Node pNode, final int nMinSize, final int nMaxSize,
+                 final long nMaxIdleMillis, final long nLeakMillis)
+  {
+    node = pNode;
+    minSize = nMinSize;
+    maxSize = Math.max(1, nMaxSize);
+    maxIdleMillis = nMaxIdleMillis;
+    leakMillis = nLeakMillis;
+  }
+
+
+  /**
+   * Return the node for this pool.
+   *
+   * @return the node
+   */
+  public Node getNode()
+  {
+    return node;
+  }
+
+
+  /**
+   * Set the minimum number of connections to keep open.  Connections
+   * above the new minimum are closed once they've been idle a while.
+   *
+   * @param nMinSize the minimum number of connections
+   */
+  synchronized void setMinSize(final int nMinSize)
+  {
+    minSize = nMinSize;
+  }
+
+
+  /**
+   * Return whether the pool has had no connections open, and none
+   * borrowed or returned, for longer than the idle timeout.
+   *
+   * @param now the current time
+   * @return whether the pool can be closed
+   */
+  synchronized boolean isUnused(final long now)
+  {
+    return ((total == 0) && ((now - lastActive) > maxIdleMillis));
+  }
+
+
+  /**
+   * Borrow a connection, waiting up to the timeout for one to be
+   * returned if the pool is at its maximum size.  The connection
+   * must be handed back with release().
+   *
+   * @param timeoutMillis how long to wait for a connection
+   * @return a validated connection, or null if none was available
+   */
+  public Connection borrow(final long timeoutMillis)
+  {
+    final long start = System.currentTimeMillis();
+    final long deadline = start + timeoutMillis;
+    boolean waited = false;
+
+    while (true)
+    {
+      Entry entry = null;
+      synchronized (this)
+      {
+        while (entry == null)
+        {
+          if (closed)
+          {
+            return null;
+          }
+          else if (!idle.isEmpty())
+          {
+            entry = idle.removeFirst();
+          }
+          else if (total < maxSize)
+          {
+            // Reserve a slot, and open the connection outside the lock
+            ++total;
+            break;
+          }
+          else
+          {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0L)
+            {
+              ++timeouts;
+              Logger.warn("Timed out waiting for a connection to " + node.getStatusString());
+              return null;
+            }
+
+            waited = true;
+            try
+            {
+              wait(remaining);
+            }
+            catch (InterruptedException ie)
+            {
+              Thread.currentThread().interrupt();
+              return null;
+            }
+          }
+        }
+      }
+
+      if (entry == null)
+      {
+        // Open a new physical connection
+        entry = createEntry();
+        if (entry == null)
+        {
+          return null;
+        }
+      }
+      else if (!isValid(entry.conn))
+      {
+        // The idle connection went bad, so drop it and try again
+        destroy(entry, true);
+        continue;
+      }
+
+      markBorrowed(entry, start, waited);
+      return entry.conn;
+    }
+  }
+
+
+  /**
+   * Return a borrowed connection to the pool.
+   *
+   * @param conn the connection
+   */
+  public void release(final Connection conn)
+  {
+    if (conn == null)
+    {
+      return;
+    }
+
+    final Entry entry;
+    synchronized (this)
+    {
+      entry = borrowed.remove(conn);
+    }
+
+    if (entry == null)
+    {
+      // Don't leave the connection open with nothing tracking it
+      Logger.warn("Released a connection that was not borrowed from " + node.getStatusString());
+      Database.closeConnection(conn);
+      return;
+    }
+
+    // Put the connection back in its default state
+    if (!resetConnection(conn))
+    {
+      destroy(entry, false);
+      return;
+    }
+
+    boolean closeNow = false;
+    synchronized (this)
+    {
+      if (closed)
+      {
+        closeNow = true;
+      }
+      else
+      {
+        entry.lastUsed = System.currentTimeMillis();
+        lastActive = entry.lastUsed;
+        entry.borrowSite = null;
+        idle.addFirst(entry);
+        notifyAll();
+      }
+    }
+
+    if (closeNow)
+    {
+      destroy(entry, false);
+    }
+  }
+
+
+  /**
+   * Close idle connections that have been unused too long, open
+   * connections up to the minimum size, and report any connections
+   * that have been borrowed for longer than the leak threshold.
+   */
+  void maintain()
+  {
+    final long now = System.currentTimeMillis();
+    final List<Entry> expired = new ArrayList<Entry>(2);
+    int toCreate = 0;
+    synchronized (this)
+    {
+      if (closed)
+      {
+        return;
+      }
+
+      // Evict from the least recently used end
+      Iterator<Entry> iter = idle.descendingIterator();
+      while (iter.hasNext() && (total - expired.size() > minSize))
+      {
+        Entry entry = iter.next();
+        if ((now - entry.lastUsed) > maxIdleMillis)
+        {
+          iter.remove();
+          expired.add(entry);
+        }
+      }
+
+      // Check for leaks
+      for (Entry entry : borrowed.values())
+      {
+        if (!entry.leakReported && ((now - entry.borrowedAt) > leakMillis))
+        {
+          entry.leakReported = true;
+          ++leaks;
+          Logger.warn("Possible connection leak on " + node.getStatusString()
+              + ": held for " + (now - entry.borrowedAt) + " ms");
+          if (entry.borrowSite != null)
+          {
+            Logger.warn("Connection borrowed at", entry.borrowSite);
+          }
+        }
+      }
+
+      toCreate = Math.max(0, minSize - (total - expired.size()));
+      total += toCreate;
+    }
+
+    for (Entry entry : expired)
+    {
+      destroy(entry, false);
+    }
+
+    // Top the pool up to the minimum size
+    for (int i = 0; i < toCreate; ++i)
+    {
+      Entry entry = createEntry();
+      if (entry == null)
+      {
+        synchronized (this)
+        {
+          total -= (toCreate - i - 1);
+        }
+        break;
+      }
+
+      boolean closeNow = false;
+      synchronized (this)
+      {
+        if (closed)
+        {
+          // The pool was closed while the connection was opened
+          closeNow = true;
+        }
+        else
+        {
+          entry.lastUsed = System.currentTimeMillis();
+          idle.addFirst(entry);
+          notifyAll();
+        }
+      }
+
+      if (closeNow)
+      {
+        destroy(entry, false);
+      }
+    }
+  }
+
+
+  /**
+   * Close the pool.  Idle connections are closed now, and borrowed
+   * connections are closed when they're released.
+   */
+  public void close()
+  {
+    final List<Entry> toClose;
+    synchronized (this)
+    {
+      closed = true;
+      toClose = new ArrayList<Entry>(idle);
+      idle.clear();
+      notifyAll();
+    }
+
+    for (Entry entry : toClose)
+    {
+      destroy(entry, false);
+    }
+  }
+
+
+  /**
+   * Return a snapshot of the pool statistics.
+   *
+   * @return the statistics
+   */
+  public synchronized PoolStats getStats()
+  {
+    return new PoolStats(borrowed.size(), idle.size(), borrows, waits, totalWaitMillis,
+                         maxWaitMillis, timeouts, created, destroyed, validationFailures, leaks);
+  }
+
+
+  /**
+   * Open a physical connection for a slot that was already reserved.
+   *
+   * @return the new entry, or null on error
+   */
+  private Entry createEntry()
+  {
+    final Connection conn = Database.createConnection(node.getUrl(), node.getId(), node.getPw());
+    synchronized (this)
+    {
+      if (conn == null)
+      {
+        // Give the slot back
+        --total;
+        notifyAll();
+        return null;
+      }
+
+      ++created;
+    }
+
+    return new Entry(conn);
+  }
+
+
+  /**
+   * Record that a connection was lent out.
+   */
+  private synchronized void markBorrowed(final Entry entry, final long start, final boolean waited)
+  {
+    final long now = System.currentTimeMillis();
+    lastActive = now;
+    entry.borrowedAt = now;
+    entry.leakReported = false;
+    entry.borrowSite = new Exception("Connection borrowed here");
+    borrowed.put(entry.conn, entry);
+
+    ++borrows;
+    if (waited)
+    {
+      final long waitMillis = now - start;
+      ++waits;
+      totalWaitMillis += waitMillis;
+      maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+    }
+  }
+
+
+  /**
+   * Close a physical connection and free its slot.
+   *
+   * @param entry the pooled connection
+   * @param invalid whether it failed validation
+   */
+  private void destroy(final Entry entry, final boolean invalid)
+  {
+    Database.closeConnection(entry.conn);
+    synchronized (this)
+    {
+      --total;
+      ++destroyed;
+      if (invalid)
+      {
+        ++validationFailures;
+      }
+
+      notifyAll();
+    }
+  }
+
+
+  /**
+   * Check whether a connection can still be used.
+   *
+   * @param conn the connection
+   * @return whether the connection is valid
+   */
+  private static boolean isValid(final Connection conn)
+  {
+    try
+    {
+      return conn.isValid(VALIDATION_TIMEOUT_SECS);
+    }
+    catch (SQLException sqle)
+    {
+      return false;
+    }
+  }
+
+
+  /**
+   * Undo any session changes made by the borrower.
+   *
+   * @param conn the connection
+   * @return whether the connection can be reused
+   */
+  private static boolean resetConnection(final Connection conn)
+  {
+    try
+    {
+      if (conn.isClosed())
+      {
+        return false;
+      }
+
+      if (!conn.getAutoCommit())
+      {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+
+      return true;
+    }
+    catch (SQLException sqle)
+    {
+      Logger.error(sqle);
+      return false;
+    }
+  }
+}
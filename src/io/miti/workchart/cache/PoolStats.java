@@ -0,0 +1,152 @@
+package io.miti.workchart.cache;
+
+/**
+ * A snapshot of the statistics for one connection pool.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class PoolStats
+{
+  /** The number of connections lent out. */
+  private final int active;
+
+  /** The number of idle connections. */
+  private final int idle;
+
+  /** The number of successful borrows. */
+  private final long borrows;
+
+  /** The number of borrows that had to wait for a connection. */
+  private final long waits;
+
+  /** The total time spent waiting, in milliseconds. */
+  private final long totalWaitMillis;
+
+  /** The longest wait, in milliseconds. */
+  private final long maxWaitMillis;
+
+  /** The number of borrows that timed out. */
+  private final long timeouts;
+
+  /** The number of physical connections opened. */
+  private final long created;
+
+  /** The number of physical connections closed. */
+  private final long destroyed;
+
+  /** The number of connections that failed validation. */
+  private final long validationFailures;
+
+  /** The number of connections reported as leaked. */
+  private final long leaks;
+
+
+  /**
+   * Constructor.
+   */
+  PoolStats(final int nActive, final int nIdle, final long nBorrows,
+            final long nWaits, final long nTotalWaitMillis, final long nMaxWaitMillis,
+            final long nTimeouts, final long nCreated, final long nDestroyed,
+            final long nValidationFailures, final long nLeaks)
+  {
+    active = nActive;
+    idle = nIdle;
+    borrows = nBorrows;
+    waits = nWaits;
+    totalWaitMillis = nTotalWaitMillis;
+    maxWaitMillis = nMaxWaitMillis;
+    timeouts = nTimeouts;
+    created = nCreated;
+    destroyed = nDestroyed;
+    validationFailures = nValidationFailures;
+    leaks = nLeaks;
+  }
+
+
+  public int getActive()
+  {
+    return active;
+  }
+
+
+  public int getIdle()
+  {
+    return idle;
+  }
+
+
+  public long getBorrows()
+  {
+    return borrows;
+  }
+
+
+  public long getWaits()
+  {
+    return waits;
+  }
+
+
+  public long getTotalWaitMillis()
+  {
+    return totalWaitMillis;
+  }
+
+
+  public long getMaxWaitMillis()
+  {
+    return maxWaitMillis;
+  }
+
+
+  /**
+   * Return the average wait time of the borrows that had to wait.
+   *
+   * @return the average wait, in milliseconds
+   */
+  public long getAverageWaitMillis()
+  {
+    return ((waits == 0L) ? 0L : (totalWaitMillis / waits));
+  }
+
+
+  public long getTimeouts()
+  {
+    return timeouts;
+  }
+
+
+  public long getCreated()
+  {
+    return created;
+  }
+
+
+  public long getDestroyed()
+  {
+    return destroyed;
+  }
+
+
+  public long getValidationFailures()
+  {
+    return validationFailures;
+  }
+
+
+  public long getLeaks()
+  {
+    return leaks;
+  }
+
+
+  @Override
+  public String toString()
+  {
+    return String.format("active=%d idle=%d borrows=%d waits=%d avgWait=%dms maxWait=%dms "
+        + "timeouts=%d created=%d destroyed=%d invalid=%d leaks=%d",
+        active, idle, borrows, waits, getAverageWaitMillis(), maxWaitMillis,
+        timeouts, created, destroyed, validationFailures, leaks);
+  }
+}
@@ -0,0 +1,319 @@
+package io.miti.workchart.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.miti.workchart.dbutil.StringLongMap;
+import io.miti.workchart.model.Node;
+
+/**
+ * A cache of query results shared by all of the charts, keyed by
+ * the node, the query text and the query parameters.  The least
+ * recently used results are dropped when the cache grows past its
+ * memory limit.  Results older than their time-to-live are still
+ * returned, but marked as stale so the caller can show them right
+ * away and refresh them in the background.
+ *
+ * The cached maps are shared, so callers must not modify them.
+ */
+public final class ResultCache
+{
+  /** The default limit on the estimated size of the cache. */
+  private static final long DEFAULT_MAX_BYTES = 32L * 1024L * 1024L;
+
+  private static final ResultCache cache;
+
+  /** The results, in least-recently-used order. */
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+  /** The limit on the estimated size of the cache. */
+  private long maxBytes = DEFAULT_MAX_BYTES;
+
+  /** The estimated size of the cache. */
+  private long totalBytes = 0L;
+
+  // Statistics
+  private long hits = 0L;
+  private long staleHits = 0L;
+  private long misses = 0L;
+  private long evictions = 0L;
+
+  static
+  {
+    cache = new ResultCache();
+  }
+
+
+  /**
+   * The key for a cached result.
+   */
+  public static final class Key
+  {
+    private final Node node;
+    private final String sql;
+    private final List<Object> params;
+    private final int hash;
+
+    /**
+     * Constructor.
+     *
+     * @param pNode the node the query runs against
+     * @param sSql the query text
+     * @param pParams the query parameters (may be empty)
+     */
+    public Key(final Node pNode, final String sSql, final Object... pParams)
+    {
+      node = pNode;
+      sql = sSql;
+      params = ((pParams == null) ? Collections.<Object>emptyList()
+                                  : Collections.unmodifiableList(Arrays.asList(pParams.clone())));
+
+      int h = ((node == null) ? 0 : node.hashCode());
+      h = 31 * h + ((sql == null) ? 0 : sql.hashCode());
+      h = 31 * h + params.hashCode();
+      hash = h;
+    }
+
+    public Node getNode()
+    {
+      return node;
+    }
+
+    public String getSql()
+    {
+      return sql;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+      if (this == obj)
+      {
+        return true;
+      }
+      else if (!(obj instanceof Key))
+      {
+        return false;
+      }
+
+      final Key k = (Key) obj;
+      return (hash == k.hash) && equal(node, k.node) && equal(sql, k.sql) && params.equals(k.params);
+    }
+
+    private static boolean equal(final Object o1, final Object o2)
+    {
+      return ((o1 == null) ? (o2 == null) : o1.equals(o2));
+    }
+  }
+
+
+  /**
+   * A cached result.
+   */
+  public static final class Entry
+  {
+    private final StringLongMap data;
+    private final long loadedAt;
+    private final long ttlMillis;
+    private final long bytes;
+
+    Entry(final StringLongMap pData, final long nTtlMillis)
+    {
+      data = pData;
+      loadedAt = System.currentTimeMillis();
+      ttlMillis = nTtlMillis;
+      bytes = pData.estimateBytes();
+    }
+
+    /**
+     * Return the cached result.  This must not be modified.
+     *
+     * @return the result
+     */
+    public StringLongMap getData()
+    {
+      return data;
+    }
+
+    public long getLoadedAt()
+    {
+      return loadedAt;
+    }
+
+    /**
+     * Return whether the result is older than its time-to-live.
+     *
+     * @return whether the result is stale
+     */
+    public boolean isStale()
+    {
+      return ((System.currentTimeMillis() - loadedAt) > ttlMillis);
+    }
+  }
+
+
+  private ResultCache()
+  {
+    super();
+  }
+
+
+  public static ResultCache getCache()
+  {
+    return cache;
+  }
+
+
+  /**
+   * Look up a result.
+   *
+   * @param key the key
+   * @return the result (possibly stale), or null if it's not cached
+   */
+  public synchronized Entry get(final Key key)
+  {
+    final Entry entry = entries.get(key);
+    if (entry == null)
+    {
+      ++misses;
+    }
+    else if (entry.isStale())
+    {
+      ++staleHits;
+    }
+    else
+    {
+      ++hits;
+    }
+
+    return entry;
+  }
+
+
+  /**
+   * Store a result.  The map must not be modified afterwards.
+   *
+   * @param key the key
+   * @param data the result
+   * @param ttlMillis how long the result is considered fresh
+   */
+  public synchronized void put(final Key key, final StringLongMap data, final long ttlMillis)
+  {
+    final Entry entry = new Entry(data, ttlMillis);
+    final Entry old = entries.put(key, entry);
+    if (old != null)
+    {
+      totalBytes -= old.bytes;
+    }
+
+    totalBytes += entry.bytes;
+    trim();
+  }
+
+
+  /**
+   * Remove one result.
+   *
+   * @param key the key
+   */
+  public synchronized void invalidate(final Key key)
+  {
+    final Entry old = entries.remove(key);
+    if (old != null)
+    {
+      totalBytes -= old.bytes;
+    }
+  }
+
+
+  /**
+   * Remove all of the results for a node.
+   *
+   * @param node the node
+   */
+  public synchronized void invalidate(final Node node)
+  {
+    final Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator();
+    while (iter.hasNext())
+    {
+      final Map.Entry<Key, Entry> e = iter.next();
+      if ((node == null) ? (e.getKey().node == null) : node.equals(e.getKey().node))
+      {
+        totalBytes -= e.getValue().bytes;
+        iter.remove();
+      }
+    }
+  }
+
+
+  /**
+   * Remove all of the results.
+   */
+  public synchronized void clear()
+  {
+    entries.clear();
+    totalBytes = 0L;
+  }
+
+
+  /**
+   * Set the limit on the estimated size of the cache.
+   *
+   * @param bytes the limit, in bytes
+   */
+  public synchronized void setMaxBytes(final long bytes)
+  {
+    maxBytes = bytes;
+    trim();
+  }
+
+
+  /**
+   * Return the keys of the cached results.
+   *
+   * @return the keys, least recently used first
+   */
+  public synchronized List<Key> getKeys()
+  {
+    return new ArrayList<Key>(entries.keySet());
+  }
+
+
+  /**
+   * Return a summary of the cache statistics.
+   *
+   * @return the statistics
+   */
+  public synchronized String getStats()
+  {
+    return String.format("entries=%d bytes=%d hits=%d staleHits=%d misses=%d evictions=%d",
+                         entries.size(), totalBytes, hits, staleHits, misses, evictions);
+  }
+
+
+  /**
+   * Drop the least recently used results until the cache fits.
+   */
+  private void trim()
+  {
+    final Iterator<Entry> iter = entries.values().iterator();
+    while ((totalBytes > maxBytes) && iter.hasNext())
+    {
+      final Entry entry = iter.next();
+      totalBytes -= entry.bytes;
+      iter.remove();
+      ++evictions;
+    }
+  }
+}
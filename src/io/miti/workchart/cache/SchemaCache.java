@@ -2,18 +2,32 @@ package io.miti.workchart.cache;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import io.miti.workchart.model.Node;
+import io.miti.workchart.util.Logger;
 import io.miti.workchart.util.SchemaParser;
 
+/**
+ * The nodes listed in the schema file, indexed by environment and by
+ * (environment, node name).  The indexes are built once per load into
+ * an immutable snapshot, which is published through a volatile field,
+ * so readers never lock and always see a complete snapshot.  When the
+ * schema file is read again, the new snapshot replaces the old one in
+ * a single write.
+ *
+ * The lists returned are shared, so callers must not modify them.
+ */
 public final class SchemaCache
 {
   private static final SchemaCache cache;
   private boolean dataLoaded = false;
-  private List<Node> schemas = null;
+  
+  /** The current snapshot of the nodes. */
+  private volatile Snapshot snapshot = new Snapshot(Collections.<Node>emptyList());
   
   static
   {
@@ -21,6 +35,75 @@ public final class SchemaCache
   }
   
   
+  /**
+   * An immutable index of a list of nodes.
+   */
+  private static final class Snapshot
+  {
+    /** The environments, in the order they're first listed. */
+    private final List<String> environments;
+    
+    /** The nodes in each environment, in the order they're listed. */
+    private final Map<String, List<Node>> envNodes;
+    
+    /** The nodes in each environment, keyed by node name. */
+    private final Map<String, Map<String, Node>> nodeIndex;
+    
+    
+    /**
+     * Constructor.
+     * 
+     * @param nodes the nodes
+     */
+    public Snapshot(final List<Node> nodes)
+    {
+      final Map<String, List<Node>> lists = new LinkedHashMap<String, List<Node>>(32);
+      final Map<String, Map<String, Node>> index = new HashMap<String, Map<String, Node>>(64);
+      for (Node node : nodes)
+      {
+        List<Node> list = lists.get(node.getSchema());
+        Map<String, Node> byName = index.get(node.getSchema());
+        if (list == null)
+        {
+          list = new ArrayList<Node>(10);
+          lists.put(node.getSchema(), list);
+          byName = new HashMap<String, Node>(16);
+          index.put(node.getSchema(), byName);
+        }
+        
+        list.add(node);
+        
+        // If a node is listed twice, the last one is used
+        byName.put(node.getNode(), node);
+      }
+      
+      // Make the lists read-only
+      for (Map.Entry<String, List<Node>> entry : lists.entrySet())
+      {
+        entry.setValue(Collections.unmodifiableList(entry.getValue()));
+      }
+      
+      environments = Collections.unmodifiableList(new ArrayList<String>(lists.keySet()));
+      envNodes = lists;
+      nodeIndex = index;
+    }
+    
+    
+    /**
+     * Return a node.
+     * 
+     * @param schemaName the environment
+     * @param nodeName the name of the node
+     * @return the node, or null if it's not found
+     */
+    public Node getNode(final String schemaName, final String nodeName)
+    {
+      final Map<String, Node> byName = nodeIndex.get(schemaName);
+      return ((byName == null) ? null : byName.get(nodeName));
+    }
+  }
+  
+  
   private SchemaCache()
   {
     super();
@@ -33,7 +116,7 @@ public final class SchemaCache
   }
   
   
-  public void loadCache()
+  public synchronized void loadCache()
   {
     if (dataLoaded)
     {
@@ -41,59 +124,107 @@ public final class SchemaCache
     }
     
     dataLoaded = true;
-    List<Node> nodes = new SchemaParser().getSchemas();
     
-    schemas = new ArrayList<Node>(nodes.size());
-    for (Node node : nodes)
+    // The parser creates each node once, so use them as-is
+    final List<Node> nodes = new SchemaParser().getSchemas();
+    if (nodes != null)
     {
-      schemas.add(new Node(node));
+      snapshot = new Snapshot(nodes);
     }
   }
   
   
   /**
-   * Create a unique list of the environments.
+   * Read the schema file again and replace the nodes.  A node is
+   * matched to the one it replaces by its environment and name.
    * 
-   * @return a unique list of the environments
+   * @return the old nodes that were removed, or whose URL or
+   *         credentials changed, or null if the file can't be read
    */
-  public List<String> getEnvironments()
+  public synchronized List<Node> reloadCache()
   {
-    Set<String> set = new LinkedHashSet<String>(10);
-    for (Node node : schemas)
+    final List<Node> nodes = new SchemaParser().getSchemas();
+    if (nodes == null)
     {
-      set.add(node.getSchema());
+      return null;
     }
     
-    return Collections.list(Collections.enumeration(set));
-  }
-  
-  
-  public List<Node> getSchemas(final String schema)
-  {
-    List<Node> nodes = new ArrayList<Node>(10);
-    for (Node node : schemas)
+    dataLoaded = true;
+    final Snapshot oldSnapshot = snapshot;
+    final Snapshot newSnapshot = new Snapshot(nodes);
+    
+    // Find the nodes that are no longer valid
+    final List<Node> staleNodes = new ArrayList<Node>(10);
+    int numRemoved = 0;
+    for (Map<String, Node> byName : oldSnapshot.nodeIndex.values())
     {
-      if (node.getSchema().equals(schema))
+      for (Node oldNode : byName.values())
       {
-        nodes.add(node);
+        final Node newNode = newSnapshot.getNode(oldNode.getSchema(), oldNode.getNode());
+        if (newNode == null)
+        {
+          staleNodes.add(oldNode);
+          ++numRemoved;
+        }
+        else if (!newNode.equals(oldNode))
+        {
+          staleNodes.add(oldNode);
+        }
       }
     }
     
-    return Collections.list(Collections.enumeration(nodes));
-  }
-  
-  
-  public Node getNode(final String schemaName, final String nodeName)
-  {
-    Node node = null;
-    for (Node iNode : schemas)
+    int numAdded = 0;
+    for (Map<String, Node> byName : newSnapshot.nodeIndex.values())
     {
-      if ((iNode.getSchema().equals(schemaName)) && (iNode.getNode().equals(nodeName)))
+      for (Node newNode : byName.values())
       {
-        node = iNode;
+        if (oldSnapshot.getNode(newNode.getSchema(), newNode.getNode()) == null)
+        {
+          ++numAdded;
+        }
       }
     }
     
-    return node;
+    snapshot = newSnapshot;
+    Logger.info(String.format("Reloaded the schemas: %d added, %d removed, %d changed",
+                              numAdded, numRemoved, staleNodes.size() - numRemoved));
+    return staleNodes;
+  }
+  
+  
+  /**
+   * Return the environments, in the order they're listed.
+   * 
+   * @return a unique list of the environments
+   */
+  public List<String> getEnvironments()
+  {
+    return snapshot.environments;
+  }
+  
+  
+  /**
+   * Return the nodes in an environment.
+   * 
+   * @param schema the environment
+   * @return the nodes, in the order they're listed (empty if there are none)
+   */
+  public List<Node> getSchemas(final String schema)
+  {
+    final List<Node> nodes = snapshot.envNodes.get(schema);
+    return ((nodes == null) ? Collections.<Node>emptyList() : nodes);
+  }
+  
+  
+  /**
+   * Return a node.
+   * 
+   * @param schemaName the environment
+   * @param nodeName the name of the node
+   * @return the node, or null if it's not found
+   */
+  public Node getNode(final String schemaName, final String nodeName)
+  {
+    return snapshot.getNode(schemaName, nodeName);
   }
 }
@@ -25,6 +25,11 @@ public final class Database
    */
   private static boolean driverLoaded = false;
   
+  /**
+   * The default number of rows to fetch per round trip when streaming.
+   */
+  public static final int DEFAULT_FETCH_SIZE = 1000;
+  
   
   /**
    * Default constructor.
@@ -130,6 +135,527 @@ public final class Database
   }
   
   
+  /**
+   * Handle one row of a streamed result set.
+   */
+  private interface RowHandler
+  {
+    /**
+     * Process the current row.
+     * 
+     * @param rs the result set, positioned on the row
+     * @throws SQLException a database exception
+     */
+    void processRow(final ResultSet rs) throws SQLException;
+  }
+  
+  
+  /**
+   * Execute a query that returns a group name and a count in each row,
+   * streaming the rows through a server-side cursor.  Only one batch
+   * of rows is held in memory at a time, and the counts are added up
+   * in a map of primitive values.
+   * 
+   * @param sqlCmd the query to run
+   * @param dbConn the database connection
+   * @param fetchSize the number of rows to fetch per round trip
+   * @param handle the query handle (may be null)
+   * @param params the values for the query parameters
+   * @return the map of results, or null if the query failed or was cancelled
+   */
+  public static StringLongMap executeSelectForGroupCounts(final String sqlCmd,
+                                                          final Connection dbConn,
+                                                          final int fetchSize,
+                                                          final QueryHandle handle,
+                                                          final Object... params)
+  {
+    final StringLongMap map = new StringLongMap();
+    final boolean done = streamSelect(sqlCmd, dbConn, fetchSize, handle, params, new RowHandler()
+    {
+      @Override
+      public void processRow(final ResultSet rs) throws SQLException
+      {
+        map.add(rs.getString(1), rs.getLong(2));
+      }
+    });
+    
+    return (done ? map : null);
+  }
+  
+  
+  /**
+   * Execute a query that returns a time (in milliseconds since the
+   * epoch) and a value in each row, streaming the rows through a
+   * server-side cursor.
+   * 
+   * @param sqlCmd the query to run, ordered by time
+   * @param dbConn the database connection
+   * @param fetchSize the number of rows to fetch per round trip
+   * @param handle the query handle (may be null)
+   * @param params the values for the query parameters
+   * @return the series, or null if the query failed or was cancelled
+   */
+  public static SeriesData executeSelectForSeries(final String sqlCmd,
+                                                  final Connection dbConn,
+                                                  final int fetchSize,
+                                                  final QueryHandle handle,
+                                                  final Object... params)
+  {
+    final SeriesData series = new SeriesData();
+    final boolean done = streamSelect(sqlCmd, dbConn, fetchSize, handle, params, new RowHandler()
+    {
+      @Override
+      public void processRow(final ResultSet rs) throws SQLException
+      {
+        series.add(rs.getLong(1), rs.getDouble(2));
+      }
+    });
+    
+    return (done ? series : null);
+  }
+  
+  
+  /**
+   * Execute a query that returns a set number, a group name and a count
+   * in each row, streaming the rows through a server-side cursor.  The
+   * counts are added up separately for each set number.
+   * 
+   * @param sqlCmd the query to run
+   * @param dbConn the database connection
+   * @param fetchSize the number of rows to fetch per round trip
+   * @param handle the query handle (may be null)
+   * @return the map of results for each set, or null if the query failed or was cancelled
+   */
+  public static Map<Integer, StringLongMap> executeSelectForKeyedGroupCounts(
+                                                          final String sqlCmd,
+                                                          final Connection dbConn,
+                                                          final int fetchSize,
+                                                          final QueryHandle handle)
+  {
+    final Map<Integer, StringLongMap> maps = new HashMap<Integer, StringLongMap>(10);
+    final boolean done = streamSelect(sqlCmd, dbConn, fetchSize, handle, null, new RowHandler()
+    {
+      @Override
+      public void processRow(final ResultSet rs) throws SQLException
+      {
+        final Integer set = Integer.valueOf(rs.getInt(1));
+        StringLongMap map = maps.get(set);
+        if (map == null)
+        {
+          map = new StringLongMap();
+          maps.put(set, map);
+        }
+        
+        map.add(rs.getString(2), rs.getLong(3));
+      }
+    });
+    
+    return (done ? maps : null);
+  }
+  
+  
+  /**
+   * Run a query through a server-side cursor, passing each row to
+   * the handler.  The connection's auto-commit setting is turned off
+   * for the query (the driver only uses a cursor inside a transaction)
+   * and restored afterwards.
+   * 
+   * @param sqlCmd the query to run
+   * @param dbConn the database connection
+   * @param fetchSize the number of rows to fetch per round trip
+   * @param handle the query handle (may be null)
+   * @param params the values for the query parameters (may be null)
+   * @param handler the handler for each row
+   * @return false if the query failed or was cancelled, true otherwise
+   */
+  private static boolean streamSelect(final String sqlCmd,
+                                      final Connection dbConn,
+                                      final int fetchSize,
+                                      final QueryHandle handle,
+                                      final Object[] params,
+                                      final RowHandler handler)
+  {
+    // Check the SQL command
+    if ((sqlCmd == null) || (sqlCmd.length() < 1))
+    {
+      System.err.println("The SQL cmd is empty or null");
+      return false;
+    }
+    else if (dbConn == null)
+    {
+      System.err.println("The connection is null for selecting group counts");
+      return false;
+    }
+    
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    boolean autoCommit = true;
+    boolean done = false;
+    try
+    {
+      // The driver only uses a cursor when auto-commit is off
+      autoCommit = dbConn.getAutoCommit();
+      if (autoCommit)
+      {
+        dbConn.setAutoCommit(false);
+      }
+      
+      // Create a forward-only statement that fetches in batches
+      stmt = dbConn.prepareStatement(sqlCmd, ResultSet.TYPE_FORWARD_ONLY,
+                                     ResultSet.CONCUR_READ_ONLY);
+      stmt.setFetchSize((fetchSize > 0) ? fetchSize : DEFAULT_FETCH_SIZE);
+      setParams(stmt, params);
+      if (handle != null)
+      {
+        // Cancelling a statement that hasn't started has no effect
+        handle.attach(stmt);
+        if (handle.isCancelled())
+        {
+          return false;
+        }
+      }
+      
+      rs = stmt.executeQuery();
+      while (rs.next())
+      {
+        handler.processRow(rs);
+      }
+      
+      done = true;
+    }
+    catch (SQLException sqlex)
+    {
+      queryFailed(sqlex, handle);
+    }
+    finally
+    {
+      if (handle != null)
+      {
+        handle.detach();
+      }
+      
+      try
+      {
+        if (rs != null)
+        {
+          rs.close();
+        }
+      }
+      catch (SQLException sqle)
+      {
+        Logger.error(sqle);
+      }
+      
+      try
+      {
+        if (stmt != null)
+        {
+          stmt.close();
+        }
+      }
+      catch (SQLException sqle)
+      {
+        Logger.error(sqle);
+      }
+      
+      // End the read-only transaction and restore auto-commit
+      try
+      {
+        if (autoCommit)
+        {
+          dbConn.rollback();
+          dbConn.setAutoCommit(true);
+        }
+      }
+      catch (SQLException sqle)
+      {
+        Logger.error(sqle);
+      }
+    }
+    
+    // Don't return partial results for a failed or cancelled query
+    return (done && ((handle == null) || !handle.isCancelled()));
+  }
+  
+  
+  /**
+   * Run a query and pass its first row, if there is one, to the handler.
+   * 
+   * @param sqlCmd the query to run
+   * @param dbConn the database connection
+   * @param handle the query handle (may be null)
+   * @param params the values for the query parameters (may be null)
+   * @param handler the handler for the first row
+   * @return false if the query failed or was cancelled, true otherwise
+   */
+  private static boolean selectFirstRow(final String sqlCmd,
+                                        final Connection dbConn,
+                                        final QueryHandle handle,
+                                        final Object[] params,
+                                        final RowHandler handler)
+  {
+    if ((sqlCmd == null) || (dbConn == null))
+    {
+      return false;
+    }
+    
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    boolean done = false;
+    try
+    {
+      stmt = dbConn.prepareStatement(sqlCmd);
+      setParams(stmt, params);
+      if (handle != null)
+      {
+        // Cancelling a statement that hasn't started has no effect
+        handle.attach(stmt);
+        if (handle.isCancelled())
+        {
+          return false;
+        }
+      }
+      
+      rs = stmt.executeQuery();
+      if (rs.next())
+      {
+        handler.processRow(rs);
+      }
+      
+      done = true;
+    }
+    catch (SQLException sqlex)
+    {
+      queryFailed(sqlex, handle);
+    }
+    finally
+    {
+      if (handle != null)
+      {
+        handle.detach();
+      }
+      
+      try
+      {
+        if (rs != null)
+        {
+          rs.close();
+        }
+        
+        if (stmt != null)
+        {
+          stmt.close();
+        }
+      }
+      catch (SQLException sqle)
+      {
+        Logger.error(sqle);
+      }
+    }
+    
+    return (done && ((handle == null) || !handle.isCancelled()));
+  }
+  
+  
+  /**
+   * Record the error from a query.
+   * 
+   * @param sqlex the exception
+   * @param handle the query handle (may be null)
+   */
+  private static void queryFailed(final SQLException sqlex, final QueryHandle handle)
+  {
+    // A cancelled query is expected to fail, so only log real errors
+    if ((handle == null) || !handle.isCancelled())
+    {
+      Logger.error(sqlex);
+    }
+    
+    if (handle != null)
+    {
+      handle.setError(sqlex);
+    }
+  }
+  
+  
+  /**
+   * Execute a query that returns a single number.
+   * 
+   * @param sqlCmd the query to run
+   * @param dbConn the database connection
+   * @param defaultValue the value to return if there's no result
+   * @param params the values for the query parameters
+   * @return the number in the first column of the first row
+   */
+  public static long executeSelectForLong(final String sqlCmd,
+                                          final Connection dbConn,
+                                          final long defaultValue,
+                                          final Object... params)
+  {
+    return executeSelectForLong(sqlCmd, dbConn, defaultValue, null, params);
+  }
+  
+  
+  /**
+   * Execute a query that returns a single number.
+   * 
+   * @param sqlCmd the query to run
+   * @param dbConn the database connection
+   * @param defaultValue the value to return if there's no result
+   * @param handle the query handle (may be null)
+   * @param params the values for the query parameters
+   * @return the number in the first column of the first row
+   */
+  public static long executeSelectForLong(final String sqlCmd,
+                                          final Connection dbConn,
+                                          final long defaultValue,
+                                          final QueryHandle handle,
+                                          final Object... params)
+  {
+    final long[] result = {defaultValue};
+    selectFirstRow(sqlCmd, dbConn, handle, params, new RowHandler()
+    {
+      @Override
+      public void processRow(final ResultSet rs) throws SQLException
+      {
+        final long value = rs.getLong(1);
+        if (!rs.wasNull())
+        {
+          result[0] = value;
+        }
+      }
+    });
+    
+    return result[0];
+  }
+
+  
+  
+  /**
+   * Execute a query that returns a single value, keeping its
+   * JDBC type so it can be bound to a later query.
+   * 
+   * @param sqlCmd the query to run
+   * @param dbConn the database connection
+   * @param params the values for the query parameters
+   * @return the value in the first column of the first row, or null
+   */
+  public static Object executeSelectForObject(final String sqlCmd,
+                                              final Connection dbConn,
+                                              final Object... params)
+  {
+    return executeSelectForObject(sqlCmd, dbConn, null, params);
+  }
+  
+  
+  /**
+   * Execute a query that returns a single value, keeping its
+   * JDBC type so it can be bound to a later query.
+   * 
+   * @param sqlCmd the query to run
+   * @param dbConn the database connection
+   * @param handle the query handle (may be null)
+   * @param params the values for the query parameters
+   * @return the value in the first column of the first row, or null
+   */
+  public static Object executeSelectForObject(final String sqlCmd,
+                                              final Connection dbConn,
+                                              final QueryHandle handle,
+                                              final Object... params)
+  {
+    final Object[] result = new Object[1];
+    final boolean done = selectFirstRow(sqlCmd, dbConn, handle, params, new RowHandler()
+    {
+      @Override
+      public void processRow(final ResultSet rs) throws SQLException
+      {
+        result[0] = rs.getObject(1);
+      }
+    });
+    
+    return (done ? result[0] : null);
+  }
+
+  
+  
+  /**
+   * Execute a query that returns a single row of numbers.
+   * 
+   * @param sqlCmd the query to run
+   * @param dbConn the database connection
+   * @param params the values for the query parameters
+   * @return the numbers in the first row, or null if there's no row or any is null
+   */
+  public static double[] executeSelectForDoubles(final String sqlCmd,
+                                                 final Connection dbConn,
+                                                 final Object... params)
+  {
+    return executeSelectForDoubles(sqlCmd, dbConn, null, params);
+  }
+  
+  
+  /**
+   * Execute a query that returns a single row of numbers.
+   * 
+   * @param sqlCmd the query to run
+   * @param dbConn the database connection
+   * @param handle the query handle (may be null)
+   * @param params the values for the query parameters
+   * @return the numbers in the first row, or null if there's no row or any is null
+   */
+  public static double[] executeSelectForDoubles(final String sqlCmd,
+                                                 final Connection dbConn,
+                                                 final QueryHandle handle,
+                                                 final Object... params)
+  {
+    final double[][] result = new double[1][];
+    final boolean done = selectFirstRow(sqlCmd, dbConn, handle, params, new RowHandler()
+    {
+      @Override
+      public void processRow(final ResultSet rs) throws SQLException
+      {
+        final int count = rs.getMetaData().getColumnCount();
+        final double[] values = new double[count];
+        for (int i = 0; i < count; ++i)
+        {
+          values[i] = rs.getDouble(i + 1);
+          if (rs.wasNull())
+          {
+            return;
+          }
+        }
+        
+        result[0] = values;
+      }
+    });
+    
+    return (done ? result[0] : null);
+  }
+
+  
+  
+  /**
+   * Set the values of the parameters in a statement.
+   * 
+   * @param stmt the statement
+   * @param params the values (may be null)
+   * @throws SQLException a database exception
+   */
+  private static void setParams(final PreparedStatement stmt, final Object[] params)
+    throws SQLException
+  {
+    if (params == null)
+    {
+      return;
+    }
+    
+    for (int i = 0; i < params.length; ++i)
+    {
+      stmt.setObject(i + 1, params[i]);
+    }
+  }
+  
+  
   /**
    * Load the database driver.
    */
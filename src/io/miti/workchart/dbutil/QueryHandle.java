@@ -0,0 +1,150 @@
+package io.miti.workchart.dbutil;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import io.miti.workchart.util.Logger;
+
+/**
+ * Track the statement for a running query, so another thread
+ * can ask the server to stop executing it.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class QueryHandle
+{
+  /** The statement currently executing, if any. */
+  private Statement stmt = null;
+
+  /** Whether the query has been cancelled. */
+  private boolean cancelled = false;
+
+  /** The error from the query, if it failed. */
+  private SQLException error = null;
+
+  /** The thread that created the handle. */
+  private final Thread owner = Thread.currentThread();
+
+
+  /**
+   * Default constructor.
+   */
+  public QueryHandle()
+  {
+    super();
+  }
+
+
+  /**
+   * Record the statement that is about to execute.  If the handle
+   * was already cancelled, the statement is cancelled immediately.
+   *
+   * @param statement the statement
+   */
+  public synchronized void attach(final Statement statement)
+  {
+    stmt = statement;
+    if (cancelled)
+    {
+      cancelStatement();
+    }
+  }
+
+
+  /**
+   * Clear the statement once it has finished executing.
+   */
+  public synchronized void detach()
+  {
+    stmt = null;
+  }
+
+
+  /**
+   * Cancel the query.  The server is asked to stop the statement
+   * if one is executing.
+   */
+  public synchronized void cancel()
+  {
+    cancelled = true;
+    cancelStatement();
+  }
+
+
+  /**
+   * Return whether the query has been cancelled.
+   *
+   * @return whether the query has been cancelled
+   */
+  public synchronized boolean isCancelled()
+  {
+    return cancelled;
+  }
+
+
+  /**
+   * Record the error that stopped the query.
+   *
+   * @param sqle the exception
+   */
+  public synchronized void setError(final SQLException sqle)
+  {
+    error = sqle;
+  }
+
+
+  /**
+   * Return the error that stopped the query.
+   *
+   * @return the exception, or null if the query didn't fail
+   */
+  public synchronized SQLException getError()
+  {
+    return error;
+  }
+
+
+  /**
+   * Return whether the query ran to completion.
+   *
+   * @return whether the query completed without being cancelled or failing
+   */
+  public synchronized boolean isComplete()
+  {
+    return (!cancelled && (error == null));
+  }
+
+
+  /**
+   * Return whether the handle was created on a thread.
+   *
+   * @param thread the thread
+   * @return whether the thread created the handle
+   */
+  public boolean isOwnedBy(final Thread thread)
+  {
+    return (owner == thread);
+  }
+
+
+  /**
+   * Send the cancel request for the current statement.
+   */
+  private void cancelStatement()
+  {
+    if (stmt == null)
+    {
+      return;
+    }
+
+    try
+    {
+      stmt.cancel();
+    }
+    catch (SQLException sqle)
+    {
+      Logger.error(sqle);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package io.miti.workchart.dbutil;
+
+import java.util.Arrays;
+
+/**
+ * A series of (time, value) points, in time order, stored in
+ * parallel primitive arrays.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class SeriesData
+{
+  /** The times, in milliseconds since the epoch. */
+  private long[] times;
+
+  /** The values. */
+  private double[] values;
+
+  /** The number of points. */
+  private int size = 0;
+
+
+  /**
+   * Default constructor.
+   */
+  public SeriesData()
+  {
+    this(64);
+  }
+
+
+  /**
+   * Constructor.
+   *
+   * @param capacity the initial number of points to make room for
+   */
+  public SeriesData(final int capacity)
+  {
+    times = new long[Math.max(capacity, 1)];
+    values = new double[Math.max(capacity, 1)];
+  }
+
+
+  public int size()
+  {
+    return size;
+  }
+
+
+  public long getTime(final int index)
+  {
+    return times[index];
+  }
+
+
+  public double getValue(final int index)
+  {
+    return values[index];
+  }
+
+
+  /**
+   * Add a point to the end of the series.
+   *
+   * @param time the time, in milliseconds since the epoch
+   * @param value the value
+   */
+  public void add(final long time, final double value)
+  {
+    if (size == times.length)
+    {
+      times = Arrays.copyOf(times, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+
+    times[size] = time;
+    values[size] = value;
+    ++size;
+  }
+
+
+  /**
+   * Reduce the series to at most a number of points, keeping its
+   * visual shape, with the largest-triangle-three-buckets algorithm.
+   * The first and last points are always kept; each point in between
+   * is the one in its bucket that forms the largest triangle with the
+   * point kept before it and the average of the next bucket.
+   *
+   * @param threshold the maximum number of points
+   * @return the reduced series, or this series if it's small enough
+   */
+  public SeriesData downsample(final int threshold)
+  {
+    if ((threshold < 3) || (size <= threshold))
+    {
+      return this;
+    }
+
+    final SeriesData out = new SeriesData(threshold);
+    out.add(times[0], values[0]);
+
+    // The points between the first and last are split into buckets
+    final double bucketSize = (double) (size - 2) / (threshold - 2);
+    int prev = 0;
+    for (int b = 0; b < (threshold - 2); ++b)
+    {
+      final int start = (int) Math.floor(b * bucketSize) + 1;
+      final int end = Math.min((int) Math.floor((b + 1) * bucketSize) + 1, size - 1);
+
+      // Average the next bucket (or use the last point)
+      final int nextStart = end;
+      final int nextEnd = Math.min((int) Math.floor((b + 2) * bucketSize) + 1, size);
+      double avgTime = 0.0;
+      double avgValue = 0.0;
+      for (int i = nextStart; i < nextEnd; ++i)
+      {
+        avgTime += times[i];
+        avgValue += values[i];
+      }
+
+      final int count = nextEnd - nextStart;
+      avgTime /= count;
+      avgValue /= count;
+
+      // Find the point with the largest triangle
+      final double prevTime = times[prev];
+      final double prevValue = values[prev];
+      double maxArea = -1.0;
+      int best = start;
+      for (int i = start; i < end; ++i)
+      {
+        final double area = Math.abs(((prevTime - avgTime) * (values[i] - prevValue))
+                                     - ((prevTime - times[i]) * (avgValue - prevValue)));
+        if (area > maxArea)
+        {
+          maxArea = area;
+          best = i;
+        }
+      }
+
+      out.add(times[best], values[best]);
+      prev = best;
+    }
+
+    out.add(times[size - 1], values[size - 1]);
+    return out;
+  }
+}
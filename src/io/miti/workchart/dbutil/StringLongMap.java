@@ -0,0 +1,380 @@
+package io.miti.workchart.dbutil;
+
+import java.util.Arrays;
+
+/**
+ * A map of strings to long values, using open addressing so that
+ * values are stored as primitives.  A null key is allowed.
+ *
+ * Iterate over the entries with firstSlot() and nextSlot():
+ *
+ * <pre>
+ * for (int slot = map.firstSlot(); slot >= 0; slot = map.nextSlot(slot))
+ * {
+ *   String key = map.keyAt(slot);
+ *   long value = map.valueAt(slot);
+ * }
+ * </pre>
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class StringLongMap
+{
+  /** The slot number used for the null key during iteration. */
+  private static final int NULL_SLOT = Integer.MAX_VALUE;
+
+  /** The keys; a null entry means the slot is empty. */
+  private String[] keys;
+
+  /** The hash code of each key. */
+  private int[] hashes;
+
+  /** The values. */
+  private long[] values;
+
+  /** The number of non-null keys. */
+  private int count = 0;
+
+  /** Whether the null key is present. */
+  private boolean hasNullKey = false;
+
+  /** The value for the null key. */
+  private long nullValue = 0L;
+
+  /** The number of keys at which the arrays are grown. */
+  private int threshold;
+
+
+  /**
+   * Default constructor.
+   */
+  public StringLongMap()
+  {
+    this(16);
+  }
+
+
+  /**
+   * Constructor.
+   *
+   * @param expectedSize the expected number of keys
+   */
+  public StringLongMap(final int expectedSize)
+  {
+    int capacity = 16;
+    while ((capacity >> 1) < expectedSize && capacity < (1 << 30))
+    {
+      capacity <<= 1;
+    }
+
+    allocate(capacity);
+  }
+
+
+  /**
+   * Return the number of keys in the map.
+   *
+   * @return the number of keys
+   */
+  public int size()
+  {
+    return count + (hasNullKey ? 1 : 0);
+  }
+
+
+  /**
+   * Return whether the map is empty.
+   *
+   * @return whether the map is empty
+   */
+  public boolean isEmpty()
+  {
+    return (size() == 0);
+  }
+
+
+  /**
+   * Return whether the key is in the map.
+   *
+   * @param key the key
+   * @return whether the key is in the map
+   */
+  public boolean containsKey(final String key)
+  {
+    if (key == null)
+    {
+      return hasNullKey;
+    }
+
+    return (keys[find(key, hash(key))] != null);
+  }
+
+
+  /**
+   * Return the value for a key.
+   *
+   * @param key the key
+   * @return the value, or zero if the key is not in the map
+   */
+  public long get(final String key)
+  {
+    if (key == null)
+    {
+      return nullValue;
+    }
+
+    final int slot = find(key, hash(key));
+    return ((keys[slot] == null) ? 0L : values[slot]);
+  }
+
+
+  /**
+   * Set the value for a key.
+   *
+   * @param key the key
+   * @param value the value
+   */
+  public void put(final String key, final long value)
+  {
+    if (key == null)
+    {
+      hasNullKey = true;
+      nullValue = value;
+      return;
+    }
+
+    final int h = hash(key);
+    final int slot = find(key, h);
+    if (keys[slot] == null)
+    {
+      insert(slot, key, h, value);
+    }
+    else
+    {
+      values[slot] = value;
+    }
+  }
+
+
+  /**
+   * Add to the value for a key.  A missing key starts at zero.
+   *
+   * @param key the key
+   * @param delta the amount to add
+   */
+  public void add(final String key, final long delta)
+  {
+    if (key == null)
+    {
+      hasNullKey = true;
+      nullValue += delta;
+      return;
+    }
+
+    final int h = hash(key);
+    final int slot = find(key, h);
+    if (keys[slot] == null)
+    {
+      insert(slot, key, h, delta);
+    }
+    else
+    {
+      values[slot] += delta;
+    }
+  }
+
+
+  /**
+   * Add every entry in another map to this map.
+   *
+   * @param map the map to add
+   */
+  public void addAll(final StringLongMap map)
+  {
+    for (int slot = map.firstSlot(); slot >= 0; slot = map.nextSlot(slot))
+    {
+      add(map.keyAt(slot), map.valueAt(slot));
+    }
+  }
+
+
+  /**
+   * Return a rough estimate of the memory used by the map, in bytes.
+   *
+   * @return the estimated size
+   */
+  public long estimateBytes()
+  {
+    // The arrays, plus each key's object header and characters
+    long bytes = 64L + (keys.length * 16L);
+    for (int i = 0; i < keys.length; ++i)
+    {
+      if (keys[i] != null)
+      {
+        bytes += 40L + (keys[i].length() * 2L);
+      }
+    }
+
+    return bytes;
+  }
+
+
+  /**
+   * Remove all of the keys.
+   */
+  public void clear()
+  {
+    Arrays.fill(keys, null);
+    count = 0;
+    hasNullKey = false;
+    nullValue = 0L;
+  }
+
+
+  /**
+   * Return the first occupied slot.
+   *
+   * @return the first slot, or -1 if the map is empty
+   */
+  public int firstSlot()
+  {
+    return nextSlot(-1);
+  }
+
+
+  /**
+   * Return the next occupied slot after the given one.
+   *
+   * @param slot the current slot
+   * @return the next slot, or -1 if there are no more
+   */
+  public int nextSlot(final int slot)
+  {
+    if (slot == NULL_SLOT)
+    {
+      return -1;
+    }
+
+    for (int i = slot + 1; i < keys.length; ++i)
+    {
+      if (keys[i] != null)
+      {
+        return i;
+      }
+    }
+
+    return (hasNullKey ? NULL_SLOT : -1);
+  }
+
+
+  /**
+   * Return the key in a slot.
+   *
+   * @param slot the slot
+   * @return the key
+   */
+  public String keyAt(final int slot)
+  {
+    return ((slot == NULL_SLOT) ? null : keys[slot]);
+  }
+
+
+  /**
+   * Return the value in a slot.
+   *
+   * @param slot the slot
+   * @return the value
+   */
+  public long valueAt(final int slot)
+  {
+    return ((slot == NULL_SLOT) ? nullValue : values[slot]);
+  }
+
+
+  /**
+   * Find the slot for a key: either the slot holding it, or the
+   * empty slot where it would go.
+   */
+  private int find(final String key, final int h)
+  {
+    final int mask = keys.length - 1;
+    int slot = h & mask;
+    while (true)
+    {
+      final String k = keys[slot];
+      if ((k == null) || ((hashes[slot] == h) && k.equals(key)))
+      {
+        return slot;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+  }
+
+
+  /**
+   * Store a new key in an empty slot, growing the arrays if needed.
+   */
+  private void insert(final int slot, final String key, final int h, final long value)
+  {
+    keys[slot] = key;
+    hashes[slot] = h;
+    values[slot] = value;
+    if (++count > threshold)
+    {
+      rehash(keys.length << 1);
+    }
+  }
+
+
+  /**
+   * Move the entries into larger arrays.
+   */
+  private void rehash(final int capacity)
+  {
+    final String[] oldKeys = keys;
+    final int[] oldHashes = hashes;
+    final long[] oldValues = values;
+    allocate(capacity);
+
+    final int mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; ++i)
+    {
+      if (oldKeys[i] != null)
+      {
+        int slot = oldHashes[i] & mask;
+        while (keys[slot] != null)
+        {
+          slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = oldKeys[i];
+        hashes[slot] = oldHashes[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+
+  /**
+   * Allocate empty arrays.
+   */
+  private void allocate(final int capacity)
+  {
+    keys = new String[capacity];
+    hashes = new int[capacity];
+    values = new long[capacity];
+    threshold = (capacity >> 1) + (capacity >> 2);
+  }
+
+
+  /**
+   * Spread the bits of the hash code, since the table size is a power of 2.
+   */
+  private static int hash(final String key)
+  {
+    final int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,27 @@
+package io.miti.workchart.model;
+
+/**
+ * How a chart computes its counts.  The approximate modes trade
+ * accuracy for speed on very large tables.
+ * 
+ * @author mwallace
+ * @version 1.0
+ */
+public enum ApproxMode
+{
+  /** Count every row. */
+  EXACT,
+  
+  /** Count a sample of the table's pages (TABLESAMPLE SYSTEM), and scale the counts up. */
+  SAMPLE,
+  
+  /** Estimate the counts from the planner statistics (pg_stats and pg_class). */
+  STATS,
+  
+  /**
+   * Count exactly, unless the table's estimated row count is over the
+   * threshold.  Then use the planner statistics, or a sample if there
+   * are no statistics for the column.
+   */
+  AUTO
+}
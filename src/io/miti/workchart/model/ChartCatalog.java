@@ -0,0 +1,51 @@
+package io.miti.workchart.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The charts the application offers.  Each call returns new chart
+ * objects, since a chart holds the data it loaded, so charts that are
+ * loaded at the same time (for different nodes) don't share state.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class ChartCatalog
+{
+  /**
+   * Default constructor.
+   */
+  private ChartCatalog()
+  {
+    super();
+  }
+
+
+  /**
+   * Create the charts.
+   *
+   * @return a new list of new charts
+   */
+  public static List<PopChart> createCharts()
+  {
+    final List<PopChart> charts = new ArrayList<PopChart>(6);
+    final boolean legend = true;
+    final boolean urls = false;
+
+    charts.add(new StringNumChart("Field1 in Table1",
+        "table1", "field1", true, legend, urls));
+    charts.add(new StringNumChart("Field2 in Tabl2",
+        "table2", "field2", true, legend, urls));
+    charts.add(new EnvironmentChart("Field1 in Table1 (all nodes)", null,
+        "table1", "field1", true, legend, urls, false));
+    charts.add(new EnvironmentChart("Field1 in Table1 (by node)", null,
+        "table1", "field1", true, legend, urls, true));
+    charts.add(new TimeSeriesChart("Rows added to Table1",
+        "table1", "created", null, 0L, true, false, urls));
+    charts.add(new HistogramChart("Distribution of Field3 in Table1",
+        "table1", "field3", true, urls));
+
+    return charts;
+  }
+}
@@ -3,7 +3,7 @@ package io.miti.workchart.model;
 public final class DataSample implements Comparable<DataSample>
 {
   public String name = null;
-  public int count = 0;
+  public long count = 0L;
   
   public DataSample()
   {
@@ -11,7 +11,7 @@ public final class DataSample implements Comparable<DataSample>
   }
   
   
-  public DataSample(final String sName, final int nCount)
+  public DataSample(final String sName, final long nCount)
   {
     name = sName;
     count = nCount;
@@ -21,7 +21,8 @@ public final class DataSample implements Comparable<DataSample>
   @Override
   public int compareTo(DataSample o)
   {
-    // Sort in count order (descending)
-    return o.count - count;
+    // Sort in count order (descending); subtracting the counts
+    // can overflow, so compare them instead
+    return Long.compare(o.count, count);
   }
 }
@@ -0,0 +1,393 @@
+package io.miti.workchart.model;
+
+import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.cache.ResultCache;
+import io.miti.workchart.cache.SchemaCache;
+import io.miti.workchart.dbutil.Database;
+import io.miti.workchart.dbutil.QueryHandle;
+import io.miti.workchart.dbutil.StringLongMap;
+import io.miti.workchart.util.Logger;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jfree.data.category.DefaultCategoryDataset;
+
+/**
+ * A chart of the grouped counts for a column, across every node in
+ * an environment.  The query runs on the nodes in parallel, up to a
+ * fixed number at a time, and the counts are added up on the client.
+ * The chart is either a pie of the combined counts, or a bar chart
+ * with one series per node.
+ *
+ * The largest groups can only be picked once the counts from every
+ * node are known, so each node returns the count for every group.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public class EnvironmentChart extends StringNumChart
+{
+  /** The most queries run at once, across all fan-out charts. */
+  private static final int MAX_THREADS = 8;
+
+  /** The threads that run the queries, shared by all fan-out charts. */
+  private static final ExecutorService executor;
+
+  /** The environment to query, or null for the current node's. */
+  private String environment = null;
+
+  /** Whether to show a series for each node. */
+  private boolean breakdown = false;
+
+  /** The counts from each node, for the breakdown (read-only). */
+  private volatile Map<Node, StringLongMap> nodeCounts = null;
+
+  /** The handles for the queries that are running. */
+  private final List<QueryHandle> handles = new ArrayList<QueryHandle>(10);
+
+  /** Whether any of the node results came from a stale cached result. */
+  private volatile boolean staleNodes = false;
+
+  static
+  {
+    final AtomicInteger threadNum = new AtomicInteger(0);
+    executor = Executors.newFixedThreadPool(MAX_THREADS, new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(final Runnable r)
+      {
+        Thread thread = new Thread(r, "chart-fanout-" + threadNum.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+
+  /**
+   * Constructor.
+   *
+   * @param sTitle the chart title
+   * @param sEnvironment the environment, or null for the environment of the current node
+   * @param sTable the table to query
+   * @param sStrCol the column to group by
+   * @param bTooltips whether to show tooltips
+   * @param bLegend whether to show the legend
+   * @param bURLs whether to generate URLs
+   * @param bBreakdown whether to show a bar chart with a series per node
+   */
+  public EnvironmentChart(final String sTitle, final String sEnvironment,
+                          final String sTable, final String sStrCol,
+                          final boolean bTooltips, final boolean bLegend, final boolean bURLs,
+                          final boolean bBreakdown)
+  {
+    super(sTitle, sTable, sStrCol, bTooltips, bLegend, bURLs);
+    environment = sEnvironment;
+    breakdown = bBreakdown;
+    isPieChart = !bBreakdown;
+
+    // The per-node results are merged, so they have to be exact
+    // and include every group
+    approxMode = ApproxMode.EXACT;
+    topNStrategy = TopNStrategy.CLIENT;
+  }
+
+
+  @Override
+  public synchronized void loadData()
+  {
+    if (dataLoaded)
+    {
+      return;
+    }
+
+    final int clears = getClearCount();
+    dataLoaded = true;
+    if (!fetchAll(true))
+    {
+      dataLoaded = false;
+    }
+
+    checkCleared(clears);
+  }
+
+
+  @Override
+  public synchronized void refreshData()
+  {
+    final int clears = getClearCount();
+    if (fetchAll(false) && checkCleared(clears))
+    {
+      dataLoaded = true;
+    }
+  }
+
+
+  @Override
+  public boolean isStale()
+  {
+    return staleNodes;
+  }
+
+
+  @Override
+  public void cancelLoad(final Thread thread)
+  {
+    synchronized (handles)
+    {
+      for (QueryHandle handle : handles)
+      {
+        if ((thread == null) || handle.isOwnedBy(thread))
+        {
+          handle.cancel();
+        }
+      }
+    }
+  }
+
+
+  @Override
+  public boolean isCoalescable()
+  {
+    return false;
+  }
+
+
+  /**
+   * Return the environment whose nodes are queried.
+   *
+   * @return the environment, or null if there's no current node
+   */
+  public String getEnvironment()
+  {
+    if (environment != null)
+    {
+      return environment;
+    }
+
+    final Node node = getQueryNode();
+    return ((node == null) ? null : node.getSchema());
+  }
+
+
+  /**
+   * Run the query on every node in the environment, and combine the
+   * results.  An environment with more nodes than threads is queried
+   * in turns.
+   *
+   * @param useCache whether to use cached results for each node
+   * @return whether the results for every node were loaded
+   */
+  private boolean fetchAll(final boolean useCache)
+  {
+    final String env = getEnvironment();
+    if (env == null)
+    {
+      return false;
+    }
+
+    final List<Node> nodes = SchemaCache.getCache().getSchemas(env);
+    final String qry = genQuery();
+    final Map<Node, Future<StringLongMap>> tasks =
+      new LinkedHashMap<Node, Future<StringLongMap>>(nodes.size());
+    final Set<Node> staleSet = new HashSet<Node>(nodes.size());
+    for (final Node node : nodes)
+    {
+      final QueryHandle handle = new QueryHandle();
+      synchronized (handles)
+      {
+        handles.add(handle);
+      }
+
+      tasks.put(node, executor.submit(new Callable<StringLongMap>()
+      {
+        @Override
+        public StringLongMap call()
+        {
+          return fetchNode(node, qry, handle, useCache, staleSet);
+        }
+      }));
+    }
+
+    // Wait for every node, and add up the counts
+    boolean complete = true;
+    final StringLongMap merged = new StringLongMap();
+    final Map<Node, StringLongMap> counts = new LinkedHashMap<Node, StringLongMap>(nodes.size());
+    for (Map.Entry<Node, Future<StringLongMap>> task : tasks.entrySet())
+    {
+      StringLongMap map = null;
+      try
+      {
+        map = task.getValue().get();
+      }
+      catch (InterruptedException ie)
+      {
+        Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException ee)
+      {
+        Logger.error(ee);
+      }
+
+      if (map == null)
+      {
+        Logger.warn("No results for " + getTitle() + " from node " + task.getKey().getNode());
+        complete = false;
+        continue;
+      }
+
+      counts.put(task.getKey(), map);
+      merged.addAll(map);
+    }
+
+    synchronized (handles)
+    {
+      handles.clear();
+    }
+
+    if (!complete)
+    {
+      return false;
+    }
+
+    synchronized (staleSet)
+    {
+      staleNodes = !staleSet.isEmpty();
+    }
+
+    // Publish the counts before the data built from them
+    nodeCounts = Collections.unmodifiableMap(counts);
+    saveData(merged);
+    return true;
+  }
+
+
+  /**
+   * Get the results for one node.  This runs on a fan-out thread.
+   *
+   * @param node the node
+   * @param qry the query
+   * @param handle the query handle
+   * @param useCache whether to use a cached result
+   * @param staleSet the nodes whose cached results are stale
+   * @return the results, or null if the query failed or was cancelled
+   */
+  private StringLongMap fetchNode(final Node node, final String qry, final QueryHandle handle,
+                                  final boolean useCache, final Set<Node> staleSet)
+  {
+    final ResultCache.Key key = new ResultCache.Key(node, qry);
+    if (useCache)
+    {
+      final ResultCache.Entry cached = ResultCache.getCache().get(key);
+      if (cached != null)
+      {
+        if (cached.isStale())
+        {
+          synchronized (staleSet)
+          {
+            staleSet.add(node);
+          }
+        }
+
+        return cached.getData();
+      }
+    }
+
+    final ConnectionCache connCache = ConnectionCache.getConnectionCache();
+    final Connection dbConn = connCache.borrowConnection(node);
+    if (dbConn == null)
+    {
+      return null;
+    }
+
+    StringLongMap map = null;
+    try
+    {
+      map = Database.executeSelectForGroupCounts(qry, dbConn, fetchSize, handle);
+    }
+    finally
+    {
+      connCache.releaseConnection(node, dbConn);
+    }
+
+    if ((map == null) || !handle.isComplete())
+    {
+      return null;
+    }
+
+    ResultCache.getCache().put(key, map, cacheTtlMillis);
+    return map;
+  }
+
+
+  /**
+   * Build the data set.  With the breakdown, each of the largest
+   * groups has a bar for each node, and the rest of each node's
+   * rows are shown as "(Others)".
+   *
+   * @param data the largest groups in the combined counts
+   */
+  @Override
+  protected void buildDataSet(final List<DataSample> data)
+  {
+    if (!breakdown)
+    {
+      super.buildDataSet(data);
+      return;
+    }
+
+    final DefaultCategoryDataset cd = new DefaultCategoryDataset();
+    final Map<Node, StringLongMap> counts = nodeCounts;
+    for (Map.Entry<Node, StringLongMap> entry : counts.entrySet())
+    {
+      final String series = entry.getKey().getNode();
+      final StringLongMap map = entry.getValue();
+      long others = 0L;
+      for (int slot = map.firstSlot(); slot >= 0; slot = map.nextSlot(slot))
+      {
+        others += map.valueAt(slot);
+      }
+
+      for (DataSample item : data)
+      {
+        if (OTHERS_LABEL.equals(item.name))
+        {
+          continue;
+        }
+
+        final long count = map.get(item.name);
+        others -= count;
+        final String label = getLabel(item.name);
+        cd.addValue(count, series, (label == null) ? "<Null>" : label);
+      }
+
+      if (others > 0L)
+      {
+        cd.addValue(others, series, OTHERS_LABEL);
+      }
+    }
+
+    dataset = cd;
+  }
+
+
+  @Override
+  public String toString()
+  {
+    return "Environment chart: " + title;
+  }
+}
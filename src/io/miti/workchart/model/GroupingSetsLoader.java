@@ -0,0 +1,235 @@
+package io.miti.workchart.model;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.cache.ResultCache;
+import io.miti.workchart.dbutil.Database;
+import io.miti.workchart.dbutil.QueryHandle;
+import io.miti.workchart.dbutil.StringLongMap;
+
+/**
+ * Load several charts on the same table with one scan, using a
+ * GROUPING SETS query with one set per column.  The combined result
+ * is split back into each chart's result and stored in the shared
+ * result cache, so each chart's own load then finds it there.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class GroupingSetsLoader
+{
+  /**
+   * Default constructor.
+   */
+  private GroupingSetsLoader()
+  {
+    super();
+  }
+
+
+  /**
+   * Split a list of charts into the batches that can share one scan.
+   * Charts that can't be combined are returned in a batch of their own.
+   *
+   * @param charts the charts
+   * @return the batches of charts
+   */
+  public static List<List<PopChart>> groupByTable(final List<PopChart> charts)
+  {
+    final Map<String, List<PopChart>> batches = new LinkedHashMap<String, List<PopChart>>(10);
+    final List<List<PopChart>> list = new ArrayList<List<PopChart>>(charts.size());
+    for (PopChart chart : charts)
+    {
+      if ((chart instanceof StringNumChart) && ((StringNumChart) chart).isCoalescable())
+      {
+        // Charts share a scan when they read the same table the same way
+        final StringNumChart snc = (StringNumChart) chart;
+        final String key = snc.getTable() + "|" + snc.getTopNStrategy();
+        List<PopChart> batch = batches.get(key);
+        if (batch == null)
+        {
+          batch = new ArrayList<PopChart>(4);
+          batches.put(key, batch);
+          list.add(batch);
+        }
+
+        batch.add(chart);
+      }
+      else
+      {
+        List<PopChart> batch = new ArrayList<PopChart>(1);
+        batch.add(chart);
+        list.add(batch);
+      }
+    }
+
+    return list;
+  }
+
+
+  /**
+   * Run one query for a batch of charts on the same table, and
+   * store each chart's result in the result cache.  Nothing is done
+   * if the batch has fewer than two charts that count exactly and
+   * aren't already cached.
+   *
+   * @param node the node to query
+   * @param batch the charts (from groupByTable())
+   * @param handle the query handle, or null to load without a way to cancel
+   * @return whether the results were cached
+   */
+  public static boolean load(final Node node, final List<PopChart> batch, final QueryHandle handle)
+  {
+    // The handle also records whether the query failed
+    final QueryHandle qh = ((handle == null) ? new QueryHandle() : handle);
+
+    // Find the charts that still need their data, and the distinct columns
+    final List<StringNumChart> charts = new ArrayList<StringNumChart>(batch.size());
+    final List<String> columns = new ArrayList<String>(batch.size());
+    for (PopChart chart : batch)
+    {
+      if (!(chart instanceof StringNumChart))
+      {
+        continue;
+      }
+
+      // Charts that estimate their counts load on their own
+      final StringNumChart snc = (StringNumChart) chart;
+      snc.resolveApproxMode(node, qh);
+      if (!snc.isCoalescable())
+      {
+        continue;
+      }
+
+      if (ResultCache.getCache().get(snc.getResultKey(node)) == null)
+      {
+        charts.add(snc);
+        if (!columns.contains(snc.getColumn()))
+        {
+          columns.add(snc.getColumn());
+        }
+      }
+    }
+
+    if (columns.size() < 2)
+    {
+      return false;
+    }
+
+    // Run the combined query
+    final StringNumChart first = charts.get(0);
+    final String qry = genQuery(first, columns);
+    final ConnectionCache connCache = ConnectionCache.getConnectionCache();
+    final Connection dbConn = connCache.borrowConnection(node);
+    if (dbConn == null)
+    {
+      return false;
+    }
+
+    Map<Integer, StringLongMap> results = null;
+    try
+    {
+      results = Database.executeSelectForKeyedGroupCounts(qry, dbConn,
+                                                          first.getFetchSize(), qh);
+    }
+    finally
+    {
+      connCache.releaseConnection(node, dbConn);
+    }
+
+    if ((results == null) || !qh.isComplete())
+    {
+      return false;
+    }
+
+    // Split the result back into each chart's result
+    for (StringNumChart chart : charts)
+    {
+      final Integer set = Integer.valueOf(getGroupingId(columns.indexOf(chart.getColumn()),
+                                                        columns.size()));
+      final StringLongMap map = results.get(set);
+      if (map == null)
+      {
+        // Leave the chart to run its own query
+        continue;
+      }
+
+      ResultCache.getCache().put(chart.getResultKey(node), map, chart.getCacheTtlMillis());
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Return the value of grouping() for the grouping set of one column.
+   * Each bit is set for a column that is not part of the set, with the
+   * first column in the most significant bit.
+   *
+   * @param index the index of the column
+   * @param numColumns the number of columns
+   * @return the grouping ID
+   */
+  private static int getGroupingId(final int index, final int numColumns)
+  {
+    final int all = (1 << numColumns) - 1;
+    return all & ~(1 << (numColumns - 1 - index));
+  }
+
+
+  /**
+   * Generate the combined query.  Each row has the grouping ID, the
+   * group name and the count.
+   *
+   * @param chart a chart in the batch, for the table and strategy
+   * @param columns the columns to group by
+   * @return the query
+   */
+  private static String genQuery(final StringNumChart chart, final List<String> columns)
+  {
+    final StringBuilder colList = new StringBuilder(100);
+    final StringBuilder sets = new StringBuilder(100);
+    final StringBuilder grp = new StringBuilder(200);
+    grp.append("case grouping(%1$s)");
+    for (int i = 0; i < columns.size(); ++i)
+    {
+      final String col = columns.get(i);
+      if (i > 0)
+      {
+        colList.append(", ");
+        sets.append(", ");
+      }
+
+      colList.append(col);
+      sets.append('(').append(col).append(')');
+      grp.append(" when ").append(getGroupingId(i, columns.size()))
+         .append(" then ").append(StringNumChart.toGroupText(col));
+    }
+    grp.append(" end");
+
+    final String groups = String.format(
+      "select grouping(%1$s) as gid, " + grp.toString() + " as grp, count(*) as cnt "
+      + "from %2$s group by grouping sets (%3$s)",
+      colList.toString(), chart.getTable(), sets.toString());
+
+    if (chart.getTopNStrategy() != TopNStrategy.SERVER)
+    {
+      return groups;
+    }
+
+    // Keep the largest groups in each set, and total the rest
+    final int maxLabels = chart.DEFAULT_MAX_LABELS;
+    return String.format(
+      "with g as (%1$s), "
+      + "r as (select gid, grp, cnt, row_number() over (partition by gid order by cnt desc, grp) as rn from g) "
+      + "select gid, grp, cnt from r where rn <= %2$d "
+      + "union all "
+      + "select gid, '%3$s', sum(cnt) from r where rn > %2$d group by gid having sum(cnt) > 0",
+      groups, maxLabels, StringNumChart.OTHERS_LABEL);
+  }
+}
@@ -0,0 +1,384 @@
+package io.miti.workchart.model;
+
+import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.cache.ResultCache;
+import io.miti.workchart.dbutil.Database;
+import io.miti.workchart.dbutil.QueryHandle;
+import io.miti.workchart.dbutil.StringLongMap;
+
+import java.sql.Connection;
+import java.text.DecimalFormat;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.renderer.category.BarRenderer;
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.jfree.data.general.AbstractDataset;
+
+/**
+ * A histogram of a numeric column.  The range of the column comes
+ * from the planner statistics when the column has a histogram, and
+ * from min() and max() otherwise.  The rows are then counted into
+ * equal-width buckets with width_bucket() in a single query, so only
+ * the bucket counts are sent to the client.  The number of buckets
+ * depends on the width of the plot.
+ *
+ * The statistics histogram leaves out the most common values and is
+ * built from a sample, so rows can fall outside its range.  Those are
+ * shown as separate bars below and above the buckets, instead of being
+ * added to the first and last buckets.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public class HistogramChart extends PopChart
+{
+  /** The number of pixels to allow for each bar. */
+  private static final int PIXELS_PER_BUCKET = 12;
+
+  /** The fewest buckets to use. */
+  private static final int MIN_BUCKETS = 5;
+
+  /** The most buckets to use. */
+  private static final int MAX_BUCKETS = 100;
+
+  /** The query for the first and last histogram bounds in the statistics. */
+  private static final String STATS_RANGE_QUERY =
+    "select b[1], b[array_length(b, 1)] from "
+    + "(select cast(cast(st.histogram_bounds as text) as float8[]) as b from pg_stats st "
+    + "join pg_namespace n on n.nspname = st.schemaname "
+    + "join pg_class c on c.relnamespace = n.oid and c.relname = st.tablename "
+    + "where c.oid = cast(? as regclass) and st.attname = ? and st.inherited = false) s "
+    + "where b is not null";
+
+  /** The table to query. */
+  protected String table = null;
+
+  /** The numeric column. */
+  protected String numCol = null;
+
+  /** Whether to use the planner statistics for the range. */
+  protected boolean useStats = true;
+
+  /** The number of rows to fetch per round trip. */
+  protected int fetchSize = Database.DEFAULT_FETCH_SIZE;
+
+  /** The data set built in the background, waiting for applyData(). */
+  private volatile AbstractDataset pendingData = null;
+
+  /** The handle for the query that is running, if any. */
+  private volatile QueryHandle queryHandle = null;
+
+
+  /**
+   * Constructor.
+   *
+   * @param sTitle the chart title
+   * @param sTable the table to query
+   * @param sNumCol the numeric column
+   * @param bTooltips whether to show tooltips
+   * @param bURLs whether to generate URLs
+   */
+  public HistogramChart(final String sTitle, final String sTable, final String sNumCol,
+                        final boolean bTooltips, final boolean bURLs)
+  {
+    super(sTitle, bTooltips, false, bURLs);
+    table = sTable;
+    numCol = sNumCol;
+    isPieChart = false;
+  }
+
+
+  @Override
+  public synchronized void loadData()
+  {
+    if (dataLoaded)
+    {
+      return;
+    }
+
+    final int clears = getClearCount();
+    dataLoaded = true;
+    if (!fetchData(true))
+    {
+      // The load was cancelled or failed, so try again next time
+      dataLoaded = false;
+    }
+
+    checkCleared(clears);
+  }
+
+
+  @Override
+  public synchronized void refreshData()
+  {
+    final int clears = getClearCount();
+    if (fetchData(false) && checkCleared(clears))
+    {
+      dataLoaded = true;
+    }
+  }
+
+
+  @Override
+  public void cancelLoad(final Thread thread)
+  {
+    final QueryHandle handle = queryHandle;
+    if ((handle != null) && ((thread == null) || handle.isOwnedBy(thread)))
+    {
+      handle.cancel();
+    }
+  }
+
+
+  @Override
+  public String getTable()
+  {
+    return table;
+  }
+
+
+  public void setUseStats(final boolean stats)
+  {
+    useStats = stats;
+  }
+
+
+  /**
+   * Get the range of the column, then count the rows in each bucket.
+   *
+   * @param useCache whether to use a cached result
+   * @return whether the query completed
+   */
+  private boolean fetchData(final boolean useCache)
+  {
+    final Node node = getQueryNode();
+    final ConnectionCache connCache = ConnectionCache.getConnectionCache();
+    final Connection dbConn = connCache.borrowConnection(node);
+    if (dbConn == null)
+    {
+      return false;
+    }
+
+    final QueryHandle handle = new QueryHandle();
+    queryHandle = handle;
+    final int buckets = Math.max(MIN_BUCKETS, Math.min(MAX_BUCKETS, plotWidth / PIXELS_PER_BUCKET));
+    double[] range = null;
+    boolean exactRange = false;
+    String qry = null;
+    StringLongMap map = null;
+    try
+    {
+      // Get the range, from the statistics if there are any
+      if (useStats)
+      {
+        range = Database.executeSelectForDoubles(STATS_RANGE_QUERY, dbConn, handle, table, numCol);
+      }
+
+      // The bounds go into the query, so they have to be finite
+      if (handle.isComplete() && !isFinite(range))
+      {
+        range = Database.executeSelectForDoubles(
+                  String.format("select min(v), max(v) from (select cast(%1$s as float8) as v from %2$s) s "
+                                + "where v not in ('Infinity', '-Infinity', 'NaN')",
+                                numCol, table), dbConn, handle);
+        exactRange = true;
+      }
+
+      if (!handle.isComplete())
+      {
+        return false;
+      }
+      else if (range == null)
+      {
+        // There are no rows
+        pendingData = new DefaultCategoryDataset();
+        return true;
+      }
+
+      if (range[1] <= range[0])
+      {
+        range[1] = range[0] + Math.max(1.0, Math.ulp(range[0]));
+      }
+
+      qry = genQuery(range[0], range[1], buckets);
+      final ResultCache.Key key = new ResultCache.Key(node, qry);
+      final ResultCache.Entry cached = (useCache ? ResultCache.getCache().get(key) : null);
+      if ((cached != null) && !cached.isStale())
+      {
+        map = cached.getData();
+      }
+      else
+      {
+        map = Database.executeSelectForGroupCounts(qry, dbConn, fetchSize, handle);
+        if ((map != null) && handle.isComplete())
+        {
+          ResultCache.getCache().put(key, map, cacheTtlMillis);
+        }
+      }
+    }
+    finally
+    {
+      queryHandle = null;
+      connCache.releaseConnection(node, dbConn);
+    }
+
+    if ((map == null) || !handle.isComplete())
+    {
+      return false;
+    }
+
+    pendingData = buildDataset(map, range[0], range[1], buckets, exactRange);
+    return true;
+  }
+
+
+  /**
+   * Return whether a range was found and both of its bounds are finite.
+   *
+   * @param range the range, or null
+   * @return whether the range can be used for the buckets
+   */
+  private static boolean isFinite(final double[] range)
+  {
+    return ((range != null) && !Double.isNaN(range[0]) && !Double.isInfinite(range[0])
+            && !Double.isNaN(range[1]) && !Double.isInfinite(range[1]));
+  }
+
+
+  /**
+   * Generate the query for the bucket counts.  Values below the range
+   * are counted in bucket 0, and values at or above the top of the
+   * range in bucket buckets + 1.  NaN has no bucket, so it's left out.
+   *
+   * @param low the lower bound of the range
+   * @param high the upper bound of the range
+   * @param buckets the number of buckets
+   * @return the query
+   */
+  protected String genQuery(final double low, final double high, final int buckets)
+  {
+    return String.format(
+      "select cast(width_bucket(cast(%1$s as float8), %3$s, %4$s, %5$d) as text), "
+      + "count(*) from %2$s where %1$s is not null and cast(%1$s as float8) <> 'NaN' group by 1",
+      numCol, table, Double.toString(low), Double.toString(high), buckets);
+  }
+
+
+  /**
+   * Build the data set, with a bar for every bucket (including the
+   * empty ones), labelled with the bucket's lower bound.  Rows outside
+   * the range get their own bars, if there are any.
+   *
+   * @param map the count for each bucket number
+   * @param low the lower bound of the range
+   * @param high the upper bound of the range
+   * @param buckets the number of buckets
+   * @param exactRange whether the range is the column's min() and max()
+   * @return the data set
+   */
+  private DefaultCategoryDataset buildDataset(final StringLongMap map, final double low,
+                                              final double high, final int buckets,
+                                              final boolean exactRange)
+  {
+    final double width = (high - low) / buckets;
+    final DecimalFormat fmt = new DecimalFormat("#,##0.###");
+    final Set<String> labels = new HashSet<String>(buckets * 2);
+    final String[] names = new String[buckets];
+    boolean unique = true;
+    for (int i = 0; i < buckets; ++i)
+    {
+      names[i] = fmt.format(low + (i * width));
+      unique = unique && labels.add(names[i]);
+    }
+
+    // width_bucket() puts the top of the range above the last bucket,
+    // so with the exact range, the rows with the maximum value are
+    // added to the last bucket
+    final long below = map.get("0");
+    long above = map.get(Integer.toString(buckets + 1));
+    long lastExtra = 0L;
+    if (exactRange)
+    {
+      lastExtra = above;
+      above = 0L;
+    }
+
+    final DefaultCategoryDataset cd = new DefaultCategoryDataset();
+    if (below > 0L)
+    {
+      cd.addValue(below, title, "< " + fmt.format(low));
+    }
+
+    for (int i = 0; i < buckets; ++i)
+    {
+      // If rounding made two labels the same, number the buckets
+      final String label = (unique ? names[i] : ("#" + (i + 1)));
+      final long extra = ((i == (buckets - 1)) ? lastExtra : 0L);
+      cd.addValue(map.get(Integer.toString(i + 1)) + extra, title, label);
+    }
+
+    if (above > 0L)
+    {
+      cd.addValue(above, title, ">= " + fmt.format(high));
+    }
+
+    return cd;
+  }
+
+
+  @Override
+  public void applyData()
+  {
+    final AbstractDataset data = pendingData;
+    if (data != null)
+    {
+      pendingData = null;
+      replaceDataset(data);
+    }
+  }
+
+
+  @Override
+  protected JFreeChart createChart()
+  {
+    if (dataset == null)
+    {
+      dataset = new DefaultCategoryDataset();
+    }
+
+    final JFreeChart chart = ChartFactory.createBarChart(getChartTitle(), numCol, "Count",
+        getCategoryDataset(), PlotOrientation.VERTICAL, false, useTooltips(), useURLs());
+    final CategoryPlot plot = (CategoryPlot) chart.getPlot();
+    plot.setNoDataMessage("No data available");
+    plot.getDomainAxis().setCategoryLabelPositions(CategoryLabelPositions.UP_45);
+    plot.getDomainAxis().setCategoryMargin(0.0);
+
+    // Draw the bars next to each other, as a histogram
+    final BarRenderer renderer = (BarRenderer) plot.getRenderer();
+    renderer.setItemMargin(0.0);
+    renderer.setShadowVisible(false);
+    return chart;
+  }
+
+
+  @Override
+  public void clearCache()
+  {
+    super.clearCache();
+    pendingData = null;
+  }
+
+
+  @Override
+  public String toString()
+  {
+    return "Histogram chart: " + title + " / "
+           + ((dataset == null) ? 0 : getCategoryDataset().getColumnCount()) + " buckets";
+  }
+}
@@ -88,6 +88,44 @@ public final class Node implements Comparable<Node>
   }
   
   
+  @Override
+  public int hashCode()
+  {
+    int result = 17;
+    result = 31 * result + hashString(schema);
+    result = 31 * result + hashString(node);
+    result = 31 * result + hashString(url);
+    result = 31 * result + hashString(id);
+    result = 31 * result + hashString(pw);
+    return result;
+  }
+  
+  
+  @Override
+  public boolean equals(final Object obj)
+  {
+    if (this == obj)
+    {
+      return true;
+    }
+    else if (!(obj instanceof Node))
+    {
+      return false;
+    }
+    
+    final Node n = (Node) obj;
+    return (compareStrings(schema, n.schema) == 0) && (compareStrings(node, n.node) == 0)
+        && (compareStrings(url, n.url) == 0) && (compareStrings(id, n.id) == 0)
+        && (compareStrings(pw, n.pw) == 0);
+  }
+  
+  
+  private static int hashString(final String str)
+  {
+    return ((str == null) ? 0 : str.hashCode());
+  }
+  
+  
   private static int compareStrings(final String s1, final String s2)
   {
     if ((s1 == null) && (s2 == null))
@@ -1,8 +1,12 @@
 package io.miti.workchart.model;
 
+import io.miti.workchart.cache.ConnectionCache;
+
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartPanel;
 import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.axis.AxisLocation;
@@ -14,6 +18,7 @@ import org.jfree.chart.plot.CategoryPlot;
 import org.jfree.chart.plot.PiePlot;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.renderer.category.BarRenderer;
+import org.jfree.data.category.CategoryDataset;
 import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.data.general.AbstractDataset;
 import org.jfree.data.general.DefaultPieDataset;
@@ -26,9 +31,39 @@ public class PopChart
   protected boolean legend = false;
   protected boolean urls = false;
   protected AbstractDataset dataset = null;
-  protected boolean dataLoaded = false;
+  protected volatile boolean dataLoaded = false;
   protected boolean isPieChart = true;
   
+  /** The default time before cached query results are refreshed. */
+  public static final long DEFAULT_CACHE_TTL_MILLIS = 5L * 60L * 1000L;
+  
+  /** How long this chart's cached query results are considered fresh. */
+  protected long cacheTtlMillis = DEFAULT_CACHE_TTL_MILLIS;
+  
+  /** How often to refresh the chart while it's shown, or 0 to not refresh it. */
+  protected long refreshIntervalMillis = 0L;
+  
+  /** The channel whose notifications mean the data changed, or null for none. */
+  protected String notifyChannel = null;
+  
+  /** The default width of the plot, in pixels. */
+  public static final int DEFAULT_PLOT_WIDTH = 800;
+  
+  /** The width of the plot, in pixels, for charts that size their data to it. */
+  protected int plotWidth = DEFAULT_PLOT_WIDTH;
+  
+  /** The number of calls to clearCache(), so a load can tell it was cleared. */
+  private final AtomicInteger clearCount = new AtomicInteger(0);
+  
+  /** The node to query, or null for the node selected in the application. */
+  protected Node node = null;
+  
+  /** The chart built on the data set, kept so new data only updates it. */
+  private JFreeChart freeChart = null;
+  
+  /** The panel showing the chart. */
+  private ChartPanel panel = null;
+  
   public PopChart()
   {
     super();
@@ -47,6 +82,16 @@ public class PopChart
     return title;
   }
   
+  /**
+   * Return the title shown on the chart itself.
+   * 
+   * @return the chart title
+   */
+  protected String getChartTitle()
+  {
+    return getTitle();
+  }
+  
   public boolean useTooltips()
   {
     return tooltips;
@@ -72,6 +117,113 @@ public class PopChart
     return isPieChart;
   }
   
+  public long getCacheTtlMillis()
+  {
+    return cacheTtlMillis;
+  }
+  
+  public void setCacheTtlMillis(final long ttlMillis)
+  {
+    cacheTtlMillis = ttlMillis;
+  }
+  
+  public long getRefreshIntervalMillis()
+  {
+    return refreshIntervalMillis;
+  }
+  
+  public void setRefreshIntervalMillis(final long intervalMillis)
+  {
+    refreshIntervalMillis = intervalMillis;
+  }
+  
+  /**
+   * Set the node the chart queries.  By default, charts query the
+   * node selected in the application.
+   * 
+   * @param queryNode the node, or null for the selected node
+   */
+  public void setNode(final Node queryNode)
+  {
+    node = queryNode;
+  }
+  
+  /**
+   * Return the node to query.
+   * 
+   * @return the node set for this chart, or the selected node
+   */
+  public Node getQueryNode()
+  {
+    return ((node != null) ? node : ConnectionCache.getConnectionCache().getCurrentNode());
+  }
+  
+  public int getPlotWidth()
+  {
+    return plotWidth;
+  }
+  
+  /**
+   * Set the width the chart is drawn at.  Charts that choose how
+   * much data to load based on the width use this on the next load.
+   * 
+   * @param width the width, in pixels
+   */
+  public void setPlotWidth(final int width)
+  {
+    if (width > 0)
+    {
+      plotWidth = width;
+    }
+  }
+  
+  public String getNotifyChannel()
+  {
+    return notifyChannel;
+  }
+  
+  public void setNotifyChannel(final String channel)
+  {
+    notifyChannel = channel;
+  }
+  
+  /**
+   * Return the table the chart reads, if it's known.
+   * 
+   * @return the table, or null
+   */
+  public String getTable()
+  {
+    return null;
+  }
+  
+  /**
+   * Return whether a notification payload names a table this chart
+   * reads, with or without its schema.  An empty payload matches
+   * every chart on the channel.
+   * 
+   * @param payload the notification payload
+   * @return whether the chart's data may have changed
+   */
+  public boolean isAffectedBy(final String payload)
+  {
+    if ((payload == null) || (payload.length() == 0))
+    {
+      return true;
+    }
+    
+    final String table = getTable();
+    if (table == null)
+    {
+      return false;
+    }
+    
+    // Match the table with or without its schema
+    final String name = payload.trim().toLowerCase();
+    final String tbl = table.toLowerCase();
+    return (name.equals(tbl) || name.endsWith("." + tbl) || tbl.endsWith("." + name));
+  }
+  
   public boolean isCategoryDatasetEmpty()
   {
     final DefaultCategoryDataset cd = getCategoryDataset();
@@ -121,19 +273,311 @@ public class PopChart
   }
   
   
-  protected void loadData()
+  public boolean isDataLoaded()
+  {
+    return dataLoaded;
+  }
+  
+  
+  public void loadData()
   {
     // Nothing to do here, but declare it for subclasses that load data on demand
   }
   
   
-  private JFreeChart getBarChart()
+  /**
+   * Load the data again, bypassing any cached results.
+   */
+  public void refreshData()
   {
-    // Load the data, if necessary
+    // By default, there's nothing cached, so clear the data and load it
+    clearCache();
     loadData();
+  }
+  
+  
+  /**
+   * Return whether the data shown came from a cached result
+   * that is past its time-to-live.
+   * 
+   * @return whether the data should be refreshed
+   */
+  public boolean isStale()
+  {
+    return false;
+  }
+  
+  
+  /**
+   * Stop any data load that is in progress.  This may be called from
+   * a thread other than the one running the load.
+   */
+  public void cancelLoad()
+  {
+    cancelLoad(null);
+  }
+  
+  
+  /**
+   * Stop the data load that is in progress, if it was started on a
+   * given thread.  This leaves alone a load started by someone else.
+   * 
+   * @param thread the thread running the load, or null for any thread
+   */
+  public void cancelLoad(final Thread thread)
+  {
+    // Nothing to do here, but declare it for subclasses that load data on demand
+  }
+  
+  
+  /**
+   * Move the most recently loaded data into the data set.  Subclasses
+   * that load data in the background keep it aside until this is
+   * called, since the data set may be shown in a chart.  Once the
+   * chart is displayed, this must be called on the Event Dispatch
+   * Thread.
+   */
+  public void applyData()
+  {
+    // Nothing to do here, but declare it for subclasses that load data on demand
+  }
+  
+  
+  /**
+   * Return the chart, building it the first time.  The data is not
+   * loaded; call loadData() and applyData() first.
+   * 
+   * @return the chart
+   */
+  public JFreeChart getChart()
+  {
+    if (freeChart == null)
+    {
+      freeChart = createChart();
+    }
+    else if (!getChartTitle().equals(freeChart.getTitle().getText()))
+    {
+      freeChart.setTitle(getChartTitle());
+    }
     
+    return freeChart;
+  }
+  
+  
+  /**
+   * Return the panel showing the chart, with the latest data.  The
+   * panel is built the first time and reused afterwards.  This must
+   * be called on the Event Dispatch Thread.
+   * 
+   * @return the chart panel
+   */
+  public ChartPanel getChartPanel()
+  {
+    applyData();
+    final JFreeChart chart = getChart();
+    if (panel == null)
+    {
+      panel = new ChartPanel(chart);
+    }
+    
+    return panel;
+  }
+  
+  
+  /**
+   * Replace the data set with a new one.  If there's a chart, only
+   * the differences are applied to the data set it shows, and the
+   * chart gets a single change event (or none, if nothing changed),
+   * so it's repainted rather than rebuilt.
+   * 
+   * @param newData the new data set
+   */
+  protected void replaceDataset(final AbstractDataset newData)
+  {
+    if ((dataset == null) || (freeChart == null) || (dataset.getClass() != newData.getClass()))
+    {
+      dataset = newData;
+      bindDataset();
+      return;
+    }
+    else if (dataset.equals(newData))
+    {
+      return;
+    }
+    
+    // Hold the change events until all of the changes are made;
+    // turning them back on sends one event
+    dataset.setNotify(false);
+    try
+    {
+      if (isPieChart)
+      {
+        updatePieDataset((DefaultPieDataset) newData);
+      }
+      else
+      {
+        updateCategoryDataset((CategoryDataset) newData);
+      }
+    }
+    finally
+    {
+      dataset.setNotify(true);
+    }
+  }
+  
+  
+  /**
+   * Apply the removals, updates and inserts that turn the pie data
+   * set into a copy of another, keeping the order of the new one.
+   * 
+   * @param src the new data
+   */
+  private void updatePieDataset(final DefaultPieDataset src)
+  {
+    final DefaultPieDataset pd = getPieDataset();
+    
+    // Remove the keys that are gone
+    for (int i = pd.getItemCount() - 1; i >= 0; --i)
+    {
+      if (src.getIndex(pd.getKey(i)) < 0)
+      {
+        pd.remove(pd.getKey(i));
+      }
+    }
+    
+    // Update the values, and add or move keys into position
+    for (int i = 0; i < src.getItemCount(); ++i)
+    {
+      final Comparable<?> key = src.getKey(i);
+      final Number value = src.getValue(i);
+      final int index = pd.getIndex(key);
+      if (index == i)
+      {
+        if (!equal(value, pd.getValue(i)))
+        {
+          pd.setValue(key, value);
+        }
+      }
+      else
+      {
+        pd.insertValue(i, key, value);
+      }
+    }
+  }
+  
+  
+  /**
+   * Apply the removals, updates and inserts that turn the category
+   * data set into a copy of another.  If the keys end up in a
+   * different order, the data set is rebuilt instead.
+   * 
+   * @param src the new data
+   */
+  private void updateCategoryDataset(final CategoryDataset src)
+  {
+    final DefaultCategoryDataset cd = getCategoryDataset();
+    
+    // Remove the rows and columns that are gone
+    for (int row = cd.getRowCount() - 1; row >= 0; --row)
+    {
+      if (src.getRowIndex(cd.getRowKey(row)) < 0)
+      {
+        cd.removeRow(row);
+      }
+    }
+    
+    for (int col = cd.getColumnCount() - 1; col >= 0; --col)
+    {
+      if (src.getColumnIndex(cd.getColumnKey(col)) < 0)
+      {
+        cd.removeColumn(col);
+      }
+    }
+    
+    // Update the values, and add the new ones
+    for (int row = 0; row < src.getRowCount(); ++row)
+    {
+      final Comparable<?> rowKey = src.getRowKey(row);
+      for (int col = 0; col < src.getColumnCount(); ++col)
+      {
+        final Comparable<?> colKey = src.getColumnKey(col);
+        final Number value = src.getValue(row, col);
+        final boolean exists = ((cd.getRowIndex(rowKey) >= 0) && (cd.getColumnIndex(colKey) >= 0));
+        if (value == null)
+        {
+          if (exists && (cd.getValue(rowKey, colKey) != null))
+          {
+            cd.removeValue(rowKey, colKey);
+          }
+        }
+        else if (!exists || !equal(value, cd.getValue(rowKey, colKey)))
+        {
+          cd.setValue(value, rowKey, colKey);
+        }
+      }
+    }
+    
+    // New keys are added at the end, so check the order
+    if (!cd.getRowKeys().equals(src.getRowKeys()) || !cd.getColumnKeys().equals(src.getColumnKeys()))
+    {
+      cd.clear();
+      for (int row = 0; row < src.getRowCount(); ++row)
+      {
+        for (int col = 0; col < src.getColumnCount(); ++col)
+        {
+          final Number value = src.getValue(row, col);
+          if (value != null)
+          {
+            cd.addValue(value, src.getRowKey(row), src.getColumnKey(col));
+          }
+        }
+      }
+    }
+  }
+  
+  
+  private static boolean equal(final Number n1, final Number n2)
+  {
+    return ((n1 == null) ? (n2 == null) : n1.equals(n2));
+  }
+  
+  
+  /**
+   * Build the chart on the data set.
+   * 
+   * @return the new chart
+   */
+  protected JFreeChart createChart()
+  {
+    return (isPieChart() ? createPieChart() : createBarChart());
+  }
+  
+  
+  /**
+   * Point the chart, if it's been built, at the current data set.
+   */
+  protected void bindDataset()
+  {
+    if (freeChart == null)
+    {
+      return;
+    }
+    
+    if (isPieChart)
+    {
+      ((PiePlot) freeChart.getPlot()).setDataset(getPieDataset());
+    }
+    else
+    {
+      ((CategoryPlot) freeChart.getPlot()).setDataset(getCategoryDataset());
+    }
+  }
+  
+  
+  private JFreeChart createBarChart()
+  {
     // Create the vertical bar chart
-    final JFreeChart chart = ChartFactory.createBarChart(getTitle(), "", "", getCategoryDataset(),
+    final JFreeChart chart = ChartFactory.createBarChart(getChartTitle(), "", "", getCategoryDataset(),
         PlotOrientation.HORIZONTAL, false, true, false);
     final CategoryPlot categoryplot = (CategoryPlot) chart.getPlot();
     categoryplot.setRangeAxisLocation(AxisLocation.BOTTOM_OR_LEFT);
@@ -166,19 +610,57 @@ public class PopChart
   }
   
   
-  public JFreeChart getFreeChart()
+  /**
+   * Build a separate chart on a copy of the data set.  The copy isn't
+   * changed by later loads, so the chart can be drawn on another
+   * thread.  This must be called on the Event Dispatch Thread.
+   * 
+   * @return the chart, or null if there's no data set to copy
+   */
+  public JFreeChart createSnapshot()
   {
-    return (isPieChart() ? getPieChart() : getBarChart());
+    applyData();
+    final AbstractDataset live = dataset;
+    if (live == null)
+    {
+      return null;
+    }
+    
+    try
+    {
+      dataset = (AbstractDataset) live.clone();
+      return createChart();
+    }
+    catch (CloneNotSupportedException cnse)
+    {
+      return null;
+    }
+    finally
+    {
+      dataset = live;
+    }
   }
   
   
-  private JFreeChart getPieChart()
+  /**
+   * Load the data, if necessary, and return the chart.  This is for
+   * callers that aren't showing the chart in a panel; the panel's
+   * data must only be changed on the Event Dispatch Thread.
+   * 
+   * @return the chart
+   */
+  public JFreeChart getFreeChart()
   {
-    // Load the data, if necessary
     loadData();
-    
+    applyData();
+    return getChart();
+  }
+  
+  
+  private JFreeChart createPieChart()
+  {
     // Create a chart and return it
-    final JFreeChart chart = ChartFactory.createPieChart(getTitle(), getPieDataset(),
+    final JFreeChart chart = ChartFactory.createPieChart(getChartTitle(), getPieDataset(),
         useLegend(), useTooltips(), useURLs());
     
     // Customize the labels and legend
@@ -198,23 +680,47 @@ public class PopChart
   }
   
   
+  /**
+   * Mark the data as needing to be loaded again.  The data set and
+   * the chart built on it are kept, and updated by the next load.
+   * This doesn't wait for a load that's running, so it can be called
+   * on the Event Dispatch Thread; the load drops its data instead.
+   */
   public void clearCache()
   {
+    clearCount.incrementAndGet();
     dataLoaded = false;
-    
-    if (dataset != null)
+  }
+  
+  
+  /**
+   * Return the number of times the cache was cleared, to pass to
+   * checkCleared() when a load finishes.
+   * 
+   * @return the number of calls to clearCache()
+   */
+  protected int getClearCount()
+  {
+    return clearCount.get();
+  }
+  
+  
+  /**
+   * Check whether the cache was cleared while a load ran, such as
+   * when the node changed, and if so, drop the data it loaded.
+   * 
+   * @param clears the value of getClearCount() when the load started
+   * @return whether the loaded data can be kept
+   */
+  protected boolean checkCleared(final int clears)
+  {
+    if (clears == clearCount.get())
     {
-      if (isPieChart)
-      {
-        getPieDataset().clear();
-      }
-      else
-      {
-        getCategoryDataset().clear();
-      }
-      
-      dataset = null;
+      return true;
     }
+    
+    clearCache();
+    return false;
   }
   
   
@@ -1,16 +1,20 @@
 package io.miti.workchart.model;
 
 import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.cache.ResultCache;
 import io.miti.workchart.dbutil.Database;
-import io.miti.workchart.util.BusyScreen;
+import io.miti.workchart.dbutil.QueryHandle;
+import io.miti.workchart.dbutil.StringLongMap;
 
 import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 
+import org.jfree.data.general.AbstractDataset;
 import org.jfree.data.general.DefaultPieDataset;
 
 public class StringNumChart extends PopChart
@@ -20,6 +24,73 @@ public class StringNumChart extends PopChart
   protected Map<String, String> labels = null;
   protected final int DEFAULT_MAX_LABELS = 15;
   
+  /** The label for the groups that don't fit in the chart. */
+  protected static final String OTHERS_LABEL = "(Others)";
+  
+  /** Where to pick the largest groups. */
+  protected TopNStrategy topNStrategy = TopNStrategy.CLIENT;
+  
+  /** The number of rows to fetch per round trip. */
+  protected int fetchSize = Database.DEFAULT_FETCH_SIZE;
+  
+  /** The default row count above which an AUTO chart estimates its counts. */
+  public static final long DEFAULT_APPROX_THRESHOLD = 50000000L;
+  
+  /** The number of rows to aim for when sampling a table. */
+  private static final double SAMPLE_TARGET_ROWS = 1000000.0;
+  
+  /** The query for the planner's estimate of a table's row count. */
+  private static final String ROW_ESTIMATE_QUERY =
+    "select cast(reltuples as bigint) from pg_class where oid = cast(? as regclass)";
+  
+  /** How to compute the counts. */
+  protected ApproxMode approxMode = ApproxMode.AUTO;
+  
+  /** The row count above which an AUTO chart estimates its counts. */
+  protected long approxThreshold = DEFAULT_APPROX_THRESHOLD;
+  
+  /** The mode in use for the node being loaded. */
+  private ApproxMode effectiveMode = ApproxMode.EXACT;
+  
+  /** The mode chosen for each node. */
+  private final Map<Node, ApproxMode> resolvedModes = new HashMap<Node, ApproxMode>(5);
+  
+  /** The planner's estimate of the table's row count on each node. */
+  private final Map<Node, Long> rowEstimates = new HashMap<Node, Long>(5);
+  
+  /** The estimated row count on the node being loaded, or -1 if unknown. */
+  private long estimatedRows = -1L;
+  
+  /** The default time between full recounts of an incremental chart. */
+  public static final long DEFAULT_RECONCILE_MILLIS = 60L * 60L * 1000L;
+  
+  /** A column that increases with each insert, for incremental loads (may be null). */
+  protected String watermarkCol = null;
+  
+  /** The time between full recounts, to correct for updates and deletes. */
+  protected long reconcileMillis = DEFAULT_RECONCILE_MILLIS;
+  
+  /** The count of every group, for the rows up to the watermark. */
+  private StringLongMap fullCounts = null;
+  
+  /** The largest value of the watermark column counted so far. */
+  private Object watermark = null;
+  
+  /** The node the counts were loaded from. */
+  private Node watermarkNode = null;
+  
+  /** When the last full count ran. */
+  private long lastReconcile = 0L;
+  
+  /** Whether the data came from a stale cached result. */
+  private volatile boolean stale = false;
+  
+  /** The data loaded in the background, waiting for applyData(). */
+  private volatile List<DataSample> pendingData = null;
+  
+  /** The handle for the query that is running, if any. */
+  private volatile QueryHandle queryHandle = null;
+  
   public StringNumChart()
   {
     super();
@@ -49,7 +120,7 @@ public class StringNumChart extends PopChart
   
   
   @Override
-  protected void loadData()
+  public synchronized void loadData()
   {
     // Check if the data has been loaded
     if (dataLoaded)
@@ -57,96 +128,414 @@ public class StringNumChart extends PopChart
       return;
     }
     
-    // Show a wait icon while the data is loading
-    BusyScreen busy = new BusyScreen().startWork();
-    
-    // Start the data load
+    // Start the data load.  The handle is published first, so the
+    // load can be cancelled while the table size is estimated.
+    final int clears = getClearCount();
     dataLoaded = true;
-    String qry = genQuery();
-    
-    // Load the data
-    Connection dbConn = ConnectionCache.getConnectionCache().getConnection();
-    Map<String, Integer> map = Database.executeSelectForStringIntMap(qry, dbConn);
-    
-    // Save the data from the map
-    if (map != null)
+    final QueryHandle handle = new QueryHandle();
+    queryHandle = handle;
+    try
+    {
+      final Node node = getQueryNode();
+      resolveApproxMode(node, handle);
+      
+      // Use the shared cached result if there is one, even if it's
+      // stale; the caller can refresh it in the background
+      final ResultCache.Entry cached = ResultCache.getCache().get(getResultKey(node));
+      if (cached != null)
+      {
+        stale = cached.isStale();
+        saveData(cached.getData());
+      }
+      else if (!fetchData(node, handle))
+      {
+        // The load was cancelled or failed, so try again next time
+        dataLoaded = false;
+      }
+    }
+    finally
     {
-      // Build the data set
-      List<DataSample> data = buildSamples(map);
-      buildDataSet(data);
+      queryHandle = null;
     }
     
-    // Reset the icon
-    busy.stopWork();
+    checkCleared(clears);
   }
   
   
-  protected void buildDataSet(final List<DataSample> data)
+  @Override
+  public synchronized void refreshData()
   {
-    dataset = new DefaultPieDataset();
-    for (DataSample item : data)
+    final int clears = getClearCount();
+    final QueryHandle handle = new QueryHandle();
+    queryHandle = handle;
+    try
     {
-      final String label = getLabel(item.name);
-      ((DefaultPieDataset) dataset).setValue(label == null ? "<Null>" : label, item.count);
+      final Node node = getQueryNode();
+      resolveApproxMode(node, handle);
+      if (fetchData(node, handle) && checkCleared(clears))
+      {
+        dataLoaded = true;
+      }
+    }
+    finally
+    {
+      queryHandle = null;
     }
   }
   
   
-  private List<DataSample> buildSamples(final Map<String, Integer> map)
+  @Override
+  public boolean isStale()
+  {
+    return stale;
+  }
+  
+  
+  /**
+   * Run the query, save the result in the shared cache and build
+   * the data set.
+   * 
+   * @param node the node to query
+   * @param handle the handle for the load
+   * @return whether the query completed
+   */
+  private boolean fetchData(final Node node, final QueryHandle handle)
   {
-    final List<DataSample> list = new ArrayList<DataSample>(20);
-    for (Entry<String, Integer> entry : map.entrySet())
+    // The load may have been cancelled while the table size was estimated
+    if (handle.isCancelled())
+    {
+      return false;
+    }
+    
+    if (isIncremental())
+    {
+      return fetchIncremental(node, handle);
+    }
+    
+    final String qry = genQuery();
+    final Object[] params = getQueryParams();
+    final ConnectionCache connCache = ConnectionCache.getConnectionCache();
+    Connection dbConn = connCache.borrowConnection(node);
+    StringLongMap map = null;
+    try
+    {
+      map = Database.executeSelectForGroupCounts(qry, dbConn, fetchSize, handle, params);
+    }
+    finally
     {
-      DataSample sample = new DataSample(entry.getKey(), entry.getValue().intValue());
-      list.add(sample);
+      connCache.releaseConnection(node, dbConn);
     }
     
-    // Sort by count (descending)
-    Collections.sort(list);
+    // Only cache complete results
+    if ((map == null) || (dbConn == null) || !handle.isComplete())
+    {
+      return false;
+    }
+    
+    // If there are no statistics for the column, sample the table instead
+    if (map.isEmpty() && (effectiveMode == ApproxMode.STATS))
+    {
+      effectiveMode = ApproxMode.SAMPLE;
+      resolvedModes.put(node, effectiveMode);
+      return fetchData(node, handle);
+    }
+    
+    ResultCache.getCache().put(new ResultCache.Key(node, qry, params), map, cacheTtlMillis);
+    stale = false;
+    saveData(map);
+    return true;
+  }
+  
+  
+  /**
+   * Count only the rows past the watermark and add them to the
+   * previous counts.  The whole table is counted on the first load,
+   * when the node changes, and after the reconciliation interval,
+   * to correct for rows that were updated or deleted.
+   * 
+   * @param node the node to query
+   * @param handle the handle for the load
+   * @return whether the query completed
+   */
+  private boolean fetchIncremental(final Node node, final QueryHandle handle)
+  {
+    final long now = System.currentTimeMillis();
+    final boolean full = ((fullCounts == null) || (watermark == null) || (node == null)
+                          || !node.equals(watermarkNode)
+                          || ((now - lastReconcile) >= reconcileMillis));
     
-    // Remove rows with zero count
-    if (list.size() > 0)
+    final ConnectionCache connCache = ConnectionCache.getConnectionCache();
+    Connection dbConn = connCache.borrowConnection(node);
+    Object mark = null;
+    StringLongMap map = null;
+    try
     {
-      // Get the index of the last element, since we traverse the
-      // list in reverse order
-      final int starting = list.size() - 1;
-      for (int i = starting; i >= 0; --i)
+      // Fix the upper bound first, so rows inserted while the counts
+      // run are left for the next load instead of being counted twice
+      mark = Database.executeSelectForObject(
+               String.format("select max(%s) from %s", watermarkCol, table), dbConn, handle);
+      if (full)
       {
-        // If this element has a zero count, remove it
-        if (list.get(i).count == 0)
+        if (mark == null)
         {
-          list.remove(i);
+          map = Database.executeSelectForGroupCounts(genGroupsQuery(), dbConn, fetchSize, handle);
         }
         else
         {
-          // We hit a positive count, so no more zero-counts
-          break;
+          map = Database.executeSelectForGroupCounts(genWatermarkQuery(false), dbConn,
+                                                     fetchSize, handle, mark);
         }
       }
+      else if ((mark == null) || mark.equals(watermark))
+      {
+        // Nothing was added since the last load
+        map = fullCounts;
+        mark = watermark;
+      }
+      else
+      {
+        final StringLongMap delta = Database.executeSelectForGroupCounts(
+          genWatermarkQuery(true), dbConn, fetchSize, handle, watermark, mark);
+        if (delta != null)
+        {
+          // The previous counts may be shared with the result cache,
+          // so merge into a copy
+          map = new StringLongMap(fullCounts.size() + delta.size());
+          map.addAll(fullCounts);
+          map.addAll(delta);
+        }
+      }
+    }
+    finally
+    {
+      connCache.releaseConnection(node, dbConn);
     }
     
-    // If there are too many items in the list, pare the list down
-    final int size = list.size();
-    if (size > DEFAULT_MAX_LABELS)
+    if ((map == null) || (dbConn == null) || !handle.isComplete())
     {
-      // Traverse the extras in reverse order so we can remove them
-      // without changing the order of future rows to be removed
-      int otherCount = 0;
-      for (int i = (size - 1); i >= DEFAULT_MAX_LABELS; --i)
+      return false;
+    }
+    
+    if (full)
+    {
+      lastReconcile = now;
+      watermarkNode = node;
+    }
+    
+    fullCounts = map;
+    watermark = mark;
+    ResultCache.getCache().put(getResultKey(node), map, cacheTtlMillis);
+    stale = false;
+    saveData(map);
+    return true;
+  }
+  
+  
+  /**
+   * Choose how to compute the counts for a node.  If the mode is
+   * AUTO, the choice depends on the planner's estimate of the number
+   * of rows in the table.  The choice is remembered until the node
+   * changes.
+   * 
+   * @param node the node the query runs against
+   * @return the mode to use
+   */
+  public ApproxMode resolveApproxMode(final Node node)
+  {
+    return resolveApproxMode(node, null);
+  }
+  
+  
+  /**
+   * Choose how to compute the counts for a node, estimating the size
+   * of the table through a query handle, so it can be cancelled.
+   * 
+   * @param node the node the query runs against
+   * @param handle the query handle (may be null)
+   * @return the mode to use
+   */
+  public synchronized ApproxMode resolveApproxMode(final Node node, final QueryHandle handle)
+  {
+    estimatedRows = -1L;
+    if ((approxMode == ApproxMode.EXACT) || (node == null) || (table == null) || (strCol == null))
+    {
+      effectiveMode = ApproxMode.EXACT;
+      return effectiveMode;
+    }
+    
+    // Get the planner's estimate of the table size, once per node
+    boolean known = true;
+    final Long estimate = rowEstimates.get(node);
+    if (estimate != null)
+    {
+      estimatedRows = estimate.longValue();
+    }
+    else
+    {
+      final ConnectionCache connCache = ConnectionCache.getConnectionCache();
+      final Connection dbConn = connCache.borrowConnection(node);
+      try
+      {
+        estimatedRows = Database.executeSelectForLong(ROW_ESTIMATE_QUERY, dbConn, -1L, handle, table);
+      }
+      finally
       {
-        otherCount += list.get(i).count;
-        list.remove(i);
+        connCache.releaseConnection(node, dbConn);
       }
       
-      if (otherCount > 0)
+      // If the estimate was cancelled, choose again on the next load
+      known = ((handle == null) || !handle.isCancelled());
+      if (known)
+      {
+        rowEstimates.put(node, Long.valueOf(estimatedRows));
+      }
+    }
+    
+    final ApproxMode resolved = resolvedModes.get(node);
+    if (resolved != null)
+    {
+      effectiveMode = resolved;
+      return effectiveMode;
+    }
+    
+    if (approxMode == ApproxMode.AUTO)
+    {
+      effectiveMode = ((estimatedRows > approxThreshold) ? ApproxMode.STATS : ApproxMode.EXACT);
+    }
+    else
+    {
+      effectiveMode = approxMode;
+    }
+    
+    // The statistics are useless if the table was never analyzed
+    if ((effectiveMode == ApproxMode.STATS) && (estimatedRows <= 0L))
+    {
+      effectiveMode = ApproxMode.SAMPLE;
+    }
+    
+    if (known)
+    {
+      resolvedModes.put(node, effectiveMode);
+    }
+    
+    return effectiveMode;
+  }
+  
+  
+  /**
+   * Build the data set from the query results.
+   * 
+   * @param map the query results
+   */
+  protected void saveData(final StringLongMap map)
+  {
+    // If the server already folded the smaller groups into
+    // "(Others)", keep every row it returned
+    final int maxLabels = (isServerTopN() ? Integer.MAX_VALUE : DEFAULT_MAX_LABELS);
+    pendingData = buildSamples(map, maxLabels);
+  }
+  
+  
+  @Override
+  public void applyData()
+  {
+    final List<DataSample> data = pendingData;
+    if (data == null)
+    {
+      return;
+    }
+    
+    // Build the new data set, and copy it into the one the chart shows
+    pendingData = null;
+    final AbstractDataset current = dataset;
+    buildDataSet(data);
+    final AbstractDataset fresh = dataset;
+    dataset = current;
+    replaceDataset(fresh);
+  }
+  
+  
+  @Override
+  public void clearCache()
+  {
+    super.clearCache();
+    pendingData = null;
+  }
+  
+  
+  @Override
+  public void cancelLoad(final Thread thread)
+  {
+    final QueryHandle handle = queryHandle;
+    if ((handle != null) && ((thread == null) || handle.isOwnedBy(thread)))
+    {
+      handle.cancel();
+    }
+  }
+  
+  
+  protected void buildDataSet(final List<DataSample> data)
+  {
+    dataset = new DefaultPieDataset();
+    for (DataSample item : data)
+    {
+      final String label = getLabel(item.name);
+      ((DefaultPieDataset) dataset).setValue(label == null ? "<Null>" : label, item.count);
+    }
+  }
+  
+  
+  /**
+   * Pick the largest groups from the query results, with the rest
+   * totalled as "(Others)".  Only the groups that are kept get a
+   * DataSample; the selection runs over the map's slots with a
+   * bounded heap, so results with millions of groups don't create
+   * millions of objects.
+   * 
+   * @param map the query results
+   * @param maxLabels the number of groups to keep
+   * @return the samples, in count order (descending)
+   */
+  private List<DataSample> buildSamples(final StringLongMap map, final int maxLabels)
+  {
+    // Keep any "(Others)" row returned by the query out of the
+    // selection, so it's merged with the groups folded below.
+    // Groups with a zero count are dropped.
+    long otherCount = 0L;
+    final TopKHeap heap = new TopKHeap(Math.min(maxLabels, map.size()));
+    for (int slot = map.firstSlot(); slot >= 0; slot = map.nextSlot(slot))
+    {
+      final long count = map.valueAt(slot);
+      if (OTHERS_LABEL.equals(map.keyAt(slot)))
+      {
+        otherCount += count;
+      }
+      else if (count > 0L)
       {
-        list.add(new DataSample("(Others)", otherCount));
-        
-        // Re-sort the list
-        Collections.sort(list);
+        otherCount += heap.offer(slot, count);
       }
     }
     
+    // Get the largest groups, in count order (descending)
+    final int size = heap.size();
+    final int[] slots = new int[size];
+    final long[] counts = new long[size];
+    heap.drainDescending(slots, counts);
+    
+    final List<DataSample> list = new ArrayList<DataSample>(size + 1);
+    for (int i = 0; i < size; ++i)
+    {
+      list.add(new DataSample(map.keyAt(slots[i]), counts[i]));
+    }
+    
+    if (otherCount > 0L)
+    {
+      list.add(new DataSample(OTHERS_LABEL, otherCount));
+      
+      // Move "(Others)" to its place in the order
+      Collections.sort(list);
+    }
+    
     return list;
   }
   
@@ -167,8 +556,211 @@ public class StringNumChart extends PopChart
   }
   
   
+  @Override
+  public String getTable()
+  {
+    return table;
+  }
+  
+  
+  public String getColumn()
+  {
+    return strCol;
+  }
+  
+  
+  /**
+   * Return whether this chart can share a table scan with other
+   * charts on the same table.
+   * 
+   * @return whether the chart's query can be combined with others
+   */
+  public boolean isCoalescable()
+  {
+    return ((table != null) && (strCol != null) && (effectiveMode == ApproxMode.EXACT)
+            && (watermarkCol == null));
+  }
+  
+  
+  /**
+   * Return the key for this chart's result in the shared result cache.
+   * 
+   * @param node the node the query runs against
+   * @return the cache key
+   */
+  public synchronized ResultCache.Key getResultKey(final Node node)
+  {
+    return new ResultCache.Key(node, genQuery(), getQueryParams());
+  }
+  
+  
+  /**
+   * Return the values for the parameters in the query.
+   * 
+   * @return the parameter values
+   */
+  protected Object[] getQueryParams()
+  {
+    if (effectiveMode == ApproxMode.STATS)
+    {
+      return new Object[] {table, strCol};
+    }
+    
+    return new Object[0];
+  }
+  
+  
+  public ApproxMode getApproxMode()
+  {
+    return approxMode;
+  }
+  
+  
+  public synchronized void setApproxMode(final ApproxMode mode)
+  {
+    approxMode = mode;
+    resolvedModes.clear();
+  }
+  
+  
+  public synchronized void setApproxThreshold(final long rows)
+  {
+    approxThreshold = rows;
+    resolvedModes.clear();
+  }
+  
+  
+  /**
+   * Return whether the counts shown are estimates.
+   * 
+   * @return whether the chart is using an approximate mode
+   */
+  public boolean isEstimated()
+  {
+    return (effectiveMode != ApproxMode.EXACT);
+  }
+  
+  
+  @Override
+  protected String getChartTitle()
+  {
+    return (isEstimated() ? (getTitle() + " (estimated)") : getTitle());
+  }
+  
+  
+  @Override
+  public boolean isAffectedBy(final String payload)
+  {
+    // If the query is supplied, the table isn't known
+    return ((table == null) || super.isAffectedBy(payload));
+  }
+  
+  
+  public String getWatermarkColumn()
+  {
+    return watermarkCol;
+  }
+  
+  
+  /**
+   * Set the column used for incremental loads.  The column must
+   * increase with every insert, such as a creation timestamp or a
+   * sequence-generated ID.
+   * 
+   * @param column the column name, or null to count the whole table each time
+   */
+  public synchronized void setWatermarkColumn(final String column)
+  {
+    watermarkCol = column;
+    fullCounts = null;
+    watermark = null;
+    watermarkNode = null;
+  }
+  
+  
+  public long getReconcileMillis()
+  {
+    return reconcileMillis;
+  }
+  
+  
+  public void setReconcileMillis(final long millis)
+  {
+    reconcileMillis = millis;
+  }
+  
+  
+  public int getFetchSize()
+  {
+    return fetchSize;
+  }
+  
+  
+  public void setFetchSize(final int size)
+  {
+    fetchSize = size;
+  }
+  
+  
+  public TopNStrategy getTopNStrategy()
+  {
+    return topNStrategy;
+  }
+  
+  
+  public void setTopNStrategy(final TopNStrategy strategy)
+  {
+    topNStrategy = strategy;
+  }
+  
+  
+  /**
+   * Return whether the server picks the largest groups.  This only
+   * applies to the query built by this class, not subclasses that
+   * supply their own query.
+   * 
+   * @return whether the top-N selection is done by the server
+   */
+  protected boolean isServerTopN()
+  {
+    return ((topNStrategy == TopNStrategy.SERVER) && (strCol != null)
+            && (effectiveMode != ApproxMode.STATS) && !isIncremental());
+  }
+  
+  
+  /**
+   * Return whether the counts are kept up to date by counting only
+   * the rows past the watermark.  Incremental loads need the count
+   * of every group, so the largest groups are picked by the client.
+   * 
+   * @return whether the chart loads incrementally
+   */
+  public boolean isIncremental()
+  {
+    return ((watermarkCol != null) && (table != null) && (strCol != null)
+            && (effectiveMode == ApproxMode.EXACT));
+  }
+  
+  
   protected String genQuery()
   {
+    if (effectiveMode == ApproxMode.STATS)
+    {
+      return genStatsQuery();
+    }
+    else if (isIncremental())
+    {
+      return genGroupsQuery();
+    }
+    else if (isServerTopN())
+    {
+      return genTopNQuery(DEFAULT_MAX_LABELS);
+    }
+    else if (effectiveMode == ApproxMode.SAMPLE)
+    {
+      return "select grp, cnt from (" + genGroupsQuery() + ") g";
+    }
+    
     String qry = String.format(
       "select %s, count(*) from %s group by %s order by %s",
       strCol, table, strCol, strCol);
@@ -176,6 +768,119 @@ public class StringNumChart extends PopChart
   }
   
   
+  /**
+   * Generate a query that returns the largest groups, plus one
+   * row with the total of all of the other groups.
+   * 
+   * @param maxLabels the number of groups to return
+   * @return the query
+   */
+  protected String genTopNQuery(final int maxLabels)
+  {
+    String qry = String.format(
+      "with g as (%1$s), "
+      + "r as (select %4$s as grp, cnt, row_number() over (order by cnt desc, grp) as rn from g) "
+      + "select grp, cnt from r where rn <= %2$d "
+      + "union all "
+      + "select '%3$s', sum(cnt) from r where rn > %2$d having sum(cnt) > 0",
+      genGroupsQuery(), maxLabels, OTHERS_LABEL, toGroupText("g.grp"));
+    return qry;
+  }
+  
+  
+  /**
+   * Generate the query for the count of each group, as columns grp
+   * and cnt.  In sample mode, only a sample of the table's pages is
+   * read, and the counts are scaled up to the full table.
+   * 
+   * @return the query
+   */
+  protected String genGroupsQuery()
+  {
+    if (effectiveMode == ApproxMode.SAMPLE)
+    {
+      // Sample enough pages for about SAMPLE_TARGET_ROWS rows
+      double percent = 1.0;
+      if (estimatedRows > 0L)
+      {
+        percent = Math.min(100.0, Math.max(0.01, (SAMPLE_TARGET_ROWS * 100.0) / estimatedRows));
+      }
+      
+      final String pct = String.format(Locale.US, "%.2f", percent);
+      return String.format(
+        "select %1$s as grp, cast(round(count(*) * (100.0 / %3$s)) as bigint) as cnt "
+        + "from %2$s tablesample system (%3$s) group by %1$s",
+        strCol, table, pct);
+    }
+    
+    return String.format(
+      "select %1$s as grp, count(*) as cnt from %2$s group by %1$s",
+      strCol, table);
+  }
+  
+  
+  /**
+   * Generate the query for the count of each group in a range of the
+   * watermark column.  The delta query counts the rows after the
+   * previous watermark, up to the new one; the full query counts
+   * every row up to the new watermark, plus rows with no watermark.
+   * 
+   * @param delta whether to count only the new rows
+   * @return the query
+   */
+  protected String genWatermarkQuery(final boolean delta)
+  {
+    final String where = (delta ? String.format("%1$s > ? and %1$s <= ?", watermarkCol)
+                                : String.format("%1$s <= ? or %1$s is null", watermarkCol));
+    return String.format(
+      "select %1$s as grp, count(*) as cnt from %2$s where %3$s group by %1$s",
+      strCol, table, where);
+  }
+  
+  
+  /**
+   * Return an expression for the text of a group value, as the driver
+   * returns it for the column itself (so a boolean is "t" or "f", not
+   * "true" or "false" as with a cast to text).  This is needed where
+   * the groups are combined with text, and keeps the keys the same as
+   * the ones the label mappings use.
+   * 
+   * @param expr the group value
+   * @return the expression for the text, or null for a null value
+   */
+  public static String toGroupText(final String expr)
+  {
+    return String.format("case when %1$s is null then null else concat(%1$s) end", expr);
+  }
+  
+  
+  /**
+   * Generate a query that estimates the counts from the planner
+   * statistics: the most common values and their frequencies, the
+   * fraction of nulls, and the rest of the table as "(Others)".
+   * The table and column are passed as parameters.
+   * 
+   * @return the query
+   */
+  protected String genStatsQuery()
+  {
+    return String.format(
+      "with s as (select st.null_frac, cast(cast(st.most_common_vals as text) as text[]) as vals, "
+      + "st.most_common_freqs as freqs, c.reltuples from pg_stats st "
+      + "join pg_namespace n on n.nspname = st.schemaname "
+      + "join pg_class c on c.relnamespace = n.oid and c.relname = st.tablename "
+      + "where c.oid = cast(? as regclass) and st.attname = ? and st.inherited = false) "
+      + "select u.v, cast(round(u.f * s.reltuples) as bigint) "
+      + "from s, unnest(s.vals, s.freqs) as u(v, f) "
+      + "union all "
+      + "select null, cast(round(s.null_frac * s.reltuples) as bigint) from s where s.null_frac > 0 "
+      + "union all "
+      + "select '%1$s', cast(round((1 - s.null_frac - coalesce((select sum(x) from unnest(s.freqs) as x), 0)) "
+      + "* s.reltuples) as bigint) from s",
+      OTHERS_LABEL);
+  }
+  
+  
   @Override
   public String toString()
   {
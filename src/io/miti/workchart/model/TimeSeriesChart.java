@@ -0,0 +1,349 @@
+package io.miti.workchart.model;
+
+import io.miti.workchart.cache.ConnectionCache;
+import io.miti.workchart.dbutil.Database;
+import io.miti.workchart.dbutil.QueryHandle;
+import io.miti.workchart.dbutil.SeriesData;
+
+import java.sql.Connection;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.data.time.FixedMillisecond;
+import org.jfree.data.time.TimeSeries;
+import org.jfree.data.time.TimeSeriesCollection;
+
+/**
+ * A chart of a value over time, from an event table.  The rows are
+ * grouped into time buckets by the server, with about one bucket per
+ * pixel of the plot, so the number of points loaded doesn't depend on
+ * the number of rows.  Buckets line up with the calendar (date_trunc)
+ * when a calendar unit is close to the bucket width.  If there are
+ * still more points than pixels, the series is reduced with the
+ * largest-triangle-three-buckets algorithm.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public class TimeSeriesChart extends PopChart
+{
+  /** The calendar units for date_trunc, and their length in milliseconds. */
+  private static final String[] UNITS = {"second", "minute", "hour", "day", "week"};
+  private static final long[] UNIT_MILLIS = {1000L, 60000L, 3600000L, 86400000L, 604800000L};
+
+  /** The table to query. */
+  protected String table = null;
+
+  /** The timestamp column. */
+  protected String timeCol = null;
+
+  /** The value for each bucket, as an aggregate expression. */
+  protected String valueExpr = "count(*)";
+
+  /** How far back from now to chart, or 0 for all of the rows. */
+  protected long rangeMillis = 0L;
+
+  /** The number of rows to fetch per round trip. */
+  protected int fetchSize = Database.DEFAULT_FETCH_SIZE;
+
+  /** The series shown in the chart, created when it's first needed. */
+  private TimeSeries series = null;
+
+  /** The data loaded in the background, waiting for applyData(). */
+  private volatile SeriesData pendingData = null;
+
+  /** The handle for the query that is running, if any. */
+  private volatile QueryHandle queryHandle = null;
+
+
+  /**
+   * Constructor.
+   *
+   * @param sTitle the chart title
+   * @param sTable the table to query
+   * @param sTimeCol the timestamp column
+   * @param sValueExpr the aggregate for each bucket, or null for count(*)
+   * @param nRangeMillis how far back from now to chart, or 0 for all rows
+   * @param bTooltips whether to show tooltips
+   * @param bLegend whether to show the legend
+   * @param bURLs whether to generate URLs
+   */
+  public TimeSeriesChart(final String sTitle, final String sTable, final String sTimeCol,
+                         final String sValueExpr, final long nRangeMillis,
+                         final boolean bTooltips, final boolean bLegend, final boolean bURLs)
+  {
+    super(sTitle, bTooltips, bLegend, bURLs);
+    table = sTable;
+    timeCol = sTimeCol;
+    if (sValueExpr != null)
+    {
+      valueExpr = sValueExpr;
+    }
+
+    rangeMillis = nRangeMillis;
+    isPieChart = false;
+  }
+
+
+  @Override
+  public synchronized void loadData()
+  {
+    if (dataLoaded)
+    {
+      return;
+    }
+
+    final int clears = getClearCount();
+    dataLoaded = true;
+    if (!fetchData())
+    {
+      // The load was cancelled or failed, so try again next time
+      dataLoaded = false;
+    }
+
+    checkCleared(clears);
+  }
+
+
+  @Override
+  public synchronized void refreshData()
+  {
+    final int clears = getClearCount();
+    if (fetchData() && checkCleared(clears))
+    {
+      dataLoaded = true;
+    }
+  }
+
+
+  @Override
+  public void cancelLoad(final Thread thread)
+  {
+    final QueryHandle handle = queryHandle;
+    if ((handle != null) && ((thread == null) || handle.isOwnedBy(thread)))
+    {
+      handle.cancel();
+    }
+  }
+
+
+  @Override
+  public String getTable()
+  {
+    return table;
+  }
+
+
+  /**
+   * Find the time range, then load the bucketed series.
+   *
+   * @return whether the query completed
+   */
+  private boolean fetchData()
+  {
+    // Publish the handle first, so waiting for a connection can be cancelled
+    final QueryHandle handle = new QueryHandle();
+    queryHandle = handle;
+    try
+    {
+      return fetchData(handle);
+    }
+    finally
+    {
+      queryHandle = null;
+    }
+  }
+
+
+  /**
+   * Find the time range, then load the bucketed series.
+   *
+   * @param handle the query handle
+   * @return whether the query completed
+   */
+  private boolean fetchData(final QueryHandle handle)
+  {
+    final Node node = getQueryNode();
+    final ConnectionCache connCache = ConnectionCache.getConnectionCache();
+    final Connection dbConn = connCache.borrowConnection(node);
+    if ((dbConn == null) || handle.isCancelled())
+    {
+      connCache.releaseConnection(node, dbConn);
+      return false;
+    }
+
+    final int width = plotWidth;
+    SeriesData data = null;
+    try
+    {
+      if (rangeMillis > 0L)
+      {
+        // Chart the range back from now.  The bounds are passed as
+        // epoch milliseconds, so the client's time zone doesn't matter.
+        final long end = System.currentTimeMillis();
+        final long start = end - rangeMillis;
+        data = Database.executeSelectForSeries(genQuery(rangeMillis, width, true), dbConn,
+                                               fetchSize, handle, Long.valueOf(start),
+                                               Long.valueOf(end));
+      }
+      else
+      {
+        // Chart all of the rows; the range only sets the bucket width
+        final double[] range = Database.executeSelectForDoubles(
+            String.format("select extract(epoch from min(%1$s)) * 1000, "
+                          + "extract(epoch from max(%1$s)) * 1000 from %2$s",
+                          timeCol, table), dbConn, handle);
+        if (!handle.isComplete())
+        {
+          return false;
+        }
+        else if (range == null)
+        {
+          // There are no rows
+          pendingData = new SeriesData(1);
+          return true;
+        }
+
+        data = Database.executeSelectForSeries(genQuery((long) (range[1] - range[0]), width, false),
+                                               dbConn, fetchSize, handle);
+      }
+    }
+    finally
+    {
+      connCache.releaseConnection(node, dbConn);
+    }
+
+    if ((data == null) || !handle.isComplete())
+    {
+      return false;
+    }
+
+    pendingData = data.downsample(width);
+    return true;
+  }
+
+
+  /**
+   * Generate the query for the bucketed series.  If the range is
+   * bounded, the parameters are the start and end of the range, in
+   * milliseconds since the epoch.
+   *
+   * @param range the length of the range, in milliseconds
+   * @param width the number of pixels across the plot
+   * @param bounded whether to limit the rows to the range
+   * @return the query
+   */
+  protected String genQuery(final long range, final int width, final boolean bounded)
+  {
+    // Use about one bucket per pixel
+    final long bucketMillis = Math.max(1000L, (range + width - 1) / Math.max(width, 1));
+
+    // Use a calendar unit if it's no more than twice the bucket width
+    String bucket = null;
+    for (int i = 0; i < UNITS.length; ++i)
+    {
+      if ((UNIT_MILLIS[i] >= bucketMillis) && (UNIT_MILLIS[i] <= (2L * bucketMillis)))
+      {
+        bucket = String.format("date_trunc('%s', %s)", UNITS[i], timeCol);
+        break;
+      }
+    }
+
+    if (bucket == null)
+    {
+      bucket = String.format("to_timestamp(floor(extract(epoch from %s) * 1000 / %d) * %d / 1000.0)",
+                             timeCol, bucketMillis, bucketMillis);
+    }
+
+    final String where = (bounded
+        ? String.format(" where %1$s >= to_timestamp(? / 1000.0) and %1$s <= to_timestamp(? / 1000.0)",
+                        timeCol)
+        : "");
+    return String.format(
+      "select cast(extract(epoch from b) * 1000 as bigint), v from "
+      + "(select %1$s as b, %2$s as v from %3$s%4$s group by 1) s "
+      + "order by 1",
+      bucket, valueExpr, table, where);
+  }
+
+
+  /**
+   * Move the loaded points into the series, with one change event.
+   */
+  @Override
+  public void applyData()
+  {
+    final SeriesData data = pendingData;
+    if (data == null)
+    {
+      return;
+    }
+
+    pendingData = null;
+    final TimeSeries series = getSeries();
+    series.setNotify(false);
+    try
+    {
+      series.clear();
+      for (int i = 0; i < data.size(); ++i)
+      {
+        series.add(new FixedMillisecond(data.getTime(i)), data.getValue(i), false);
+      }
+    }
+    finally
+    {
+      series.setNotify(true);
+    }
+  }
+
+
+  @Override
+  protected JFreeChart createChart()
+  {
+    getSeries();
+    final JFreeChart chart = ChartFactory.createTimeSeriesChart(getChartTitle(), "", "",
+        (TimeSeriesCollection) dataset, useLegend(), useTooltips(), useURLs());
+    chart.getXYPlot().setNoDataMessage("No data available");
+    return chart;
+  }
+
+
+  /**
+   * Return the series, creating it and its data set the first time,
+   * so the chart classes aren't loaded until there's data to show.
+   * 
+   * @return the series
+   */
+  private TimeSeries getSeries()
+  {
+    if (series == null)
+    {
+      series = new TimeSeries(title);
+      dataset = new TimeSeriesCollection(series);
+    }
+
+    return series;
+  }
+
+
+  @Override
+  protected void bindDataset()
+  {
+    // The series is updated in place, so the data set never changes
+  }
+
+
+  @Override
+  public void clearCache()
+  {
+    super.clearCache();
+    pendingData = null;
+  }
+
+
+  @Override
+  public String toString()
+  {
+    return "Time series chart: " + title + " / " + ((series == null) ? 0 : series.getItemCount()) + " points";
+  }
+}
@@ -0,0 +1,160 @@
+package io.miti.workchart.model;
+
+/**
+ * Keeps the K largest counts seen so far, in a min-heap stored in
+ * parallel primitive arrays.  Each entry is a slot in a StringLongMap,
+ * so no objects are created per group; offering N groups takes
+ * O(N log K) time and O(K) space.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+final class TopKHeap
+{
+  /** The counts, in heap order (smallest first). */
+  private final long[] counts;
+
+  /** The map slot for each count. */
+  private final int[] slots;
+
+  /** The number of entries in the heap. */
+  private int size = 0;
+
+
+  /**
+   * Constructor.
+   *
+   * @param capacity the number of entries to keep
+   */
+  TopKHeap(final int capacity)
+  {
+    counts = new long[capacity];
+    slots = new int[capacity];
+  }
+
+
+  /**
+   * Return the number of entries in the heap.
+   *
+   * @return the number of entries
+   */
+  int size()
+  {
+    return size;
+  }
+
+
+  /**
+   * Offer a count to the heap.  If the heap is full, either the new
+   * count or the smallest count in the heap is dropped.
+   *
+   * @param slot the map slot of the group
+   * @param count the count for the group
+   * @return the count that was dropped, or 0 if none was
+   */
+  long offer(final int slot, final long count)
+  {
+    if (size < counts.length)
+    {
+      counts[size] = count;
+      slots[size] = slot;
+      siftUp(size++);
+      return 0L;
+    }
+    else if ((size == 0) || (count <= counts[0]))
+    {
+      return count;
+    }
+
+    // Replace the smallest entry
+    final long dropped = counts[0];
+    counts[0] = count;
+    slots[0] = slot;
+    siftDown(0);
+    return dropped;
+  }
+
+
+  /**
+   * Remove all of the entries, largest first.  The heap is empty
+   * afterwards.
+   *
+   * @param outSlots receives the map slots, largest count first
+   * @param outCounts receives the counts, largest first
+   */
+  void drainDescending(final int[] outSlots, final long[] outCounts)
+  {
+    while (size > 0)
+    {
+      --size;
+      outSlots[size] = slots[0];
+      outCounts[size] = counts[0];
+      counts[0] = counts[size];
+      slots[0] = slots[size];
+      siftDown(0);
+    }
+  }
+
+
+  /**
+   * Return whether entry i belongs below entry j in the heap.
+   * Ties are broken on the slot so the order is deterministic.
+   */
+  private boolean less(final int i, final int j)
+  {
+    return ((counts[i] < counts[j]) || ((counts[i] == counts[j]) && (slots[i] > slots[j])));
+  }
+
+
+  private void siftUp(final int index)
+  {
+    int i = index;
+    while (i > 0)
+    {
+      final int parent = (i - 1) >>> 1;
+      if (!less(i, parent))
+      {
+        break;
+      }
+
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+
+  private void siftDown(final int index)
+  {
+    int i = index;
+    while (true)
+    {
+      final int left = (2 * i) + 1;
+      if (left >= size)
+      {
+        break;
+      }
+
+      final int right = left + 1;
+      final int child = (((right < size) && less(right, left)) ? right : left);
+      if (!less(child, i))
+      {
+        break;
+      }
+
+      swap(i, child);
+      i = child;
+    }
+  }
+
+
+  private void swap(final int i, final int j)
+  {
+    final long c = counts[i];
+    counts[i] = counts[j];
+    counts[j] = c;
+
+    final int s = slots[i];
+    slots[i] = slots[j];
+    slots[j] = s;
+  }
+}
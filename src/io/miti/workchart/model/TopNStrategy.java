@@ -0,0 +1,17 @@
+package io.miti.workchart.model;
+
+/**
+ * Where a chart picks its largest groups and folds the rest
+ * into a single "(Others)" group.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public enum TopNStrategy
+{
+  /** Fetch every group, and pick the largest ones in the client. */
+  CLIENT,
+  
+  /** Have the server return only the largest groups and the total of the rest. */
+  SERVER
+}
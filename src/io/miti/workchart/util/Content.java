@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -681,6 +682,40 @@ public final class Content
   }
   
   
+  /**
+   * Return the file that getFileStream() reads, if it's on the
+   * file system (and not in a jar).
+   * 
+   * @param filename the input filename
+   * @return the file, or null if it's not on the file system
+   */
+  public static File getFile(final String filename)
+  {
+    final String fullPath = getContentPath(filename);
+    if (!Utility.readFilesAsStream())
+    {
+      return new File(fullPath);
+    }
+    
+    // Check whether the resource was found in a directory
+    final URL url = Content.class.getResource(fullPath);
+    if ((url == null) || !"file".equals(url.getProtocol()))
+    {
+      return null;
+    }
+    
+    try
+    {
+      return new File(url.toURI());
+    }
+    catch (URISyntaxException e)
+    {
+      Logger.error("URISyntaxException while getting the path to " + filename);
+      return null;
+    }
+  }
+  
+  
   /**
    * Let the caller specify a handler when reading each line.
    * 
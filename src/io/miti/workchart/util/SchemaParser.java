@@ -5,24 +5,45 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import io.miti.workchart.model.Node;
 
-public class SchemaParser extends DefaultHandler
+/**
+ * Read the list of nodes from the schema file.  The file is read in
+ * one pass with a streaming (StAX) reader, and each node is created
+ * once, when its element starts.  The reader can return the text of an
+ * element in several pieces, so the pieces are collected in a buffer
+ * until the element ends.
+ * 
+ * <pre>
+ * &lt;schemas&gt;
+ *   &lt;schema id="environment"&gt;
+ *     &lt;node id="name"&gt;
+ *       &lt;url&gt;jdbc:...&lt;/url&gt;
+ *       &lt;id&gt;user&lt;/id&gt;
+ *       &lt;pw&gt;password&lt;/pw&gt;
+ *     &lt;/node&gt;
+ *   &lt;/schema&gt;
+ * &lt;/schemas&gt;
+ * </pre>
+ */
+public class SchemaParser
 {
-  private List<Node> nodes = new ArrayList<Node>(5);
-  private Node node = null;
+  /** Creates the readers. */
+  private static final XMLInputFactory factory;
   
-  private boolean inURL = false;
-  private boolean inID = false;
-  private boolean inPW = false;
+  static
+  {
+    factory = XMLInputFactory.newInstance();
+    
+    // The file only has elements and text, so don't read DTDs
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
   
   
   public SchemaParser()
@@ -31,154 +52,161 @@ public class SchemaParser extends DefaultHandler
   }
   
   
+  /**
+   * Read the nodes from schema.xml.
+   * 
+   * @return the nodes, or null if the file can't be read
+   */
   public List<Node> getSchemas()
   {
     InputStream is = Content.getFileStream("schema.xml");
+    if (is == null)
+    {
+      Logger.error("Unable to open schema.xml");
+      return null;
+    }
     
-    // Parse the file
-    SAXParserFactory factory = SAXParserFactory.newInstance();
-    SAXParser parser = null;
     try
     {
-      // Parse the file using this instance of this class
-      parser = factory.newSAXParser();
-      parser.parse(is, this);
+      return getSchemas(is);
     }
-    catch (ParserConfigurationException e)
+    finally
     {
-      e.printStackTrace();
-      return null;
+      // Close the input stream
+      try
+      {
+        is.close();
+      }
+      catch (IOException e)
+      {
+        Logger.error(e);
+      }
     }
-    catch (SAXException e)
+  }
+  
+  
+  /**
+   * Read the nodes from a stream.  The stream is not closed.
+   * 
+   * @param is the stream
+   * @return the nodes, or null if the stream can't be parsed
+   */
+  public List<Node> getSchemas(final InputStream is)
+  {
+    final List<Node> nodes = new ArrayList<Node>(100);
+    XMLStreamReader reader = null;
+    try
     {
-      e.printStackTrace();
-      return null;
+      reader = factory.createXMLStreamReader(is);
+      final StringBuilder text = new StringBuilder(200);
+      String schema = null;
+      Node node = null;
+      while (reader.hasNext())
+      {
+        switch (reader.next())
+        {
+          case XMLStreamConstants.START_ELEMENT:
+            text.setLength(0);
+            if (reader.getLocalName().equalsIgnoreCase("schema"))
+            {
+              schema = reader.getAttributeValue(null, "id");
+            }
+            else if (reader.getLocalName().equalsIgnoreCase("node"))
+            {
+              node = new Node();
+              node.setSchema(schema);
+              node.setNode(reader.getAttributeValue(null, "id"));
+              nodes.add(node);
+            }
+            break;
+          
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.CDATA:
+            // The text of an element can arrive in several pieces
+            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            break;
+          
+          case XMLStreamConstants.END_ELEMENT:
+            if (node != null)
+            {
+              setField(node, reader.getLocalName(), text);
+            }
+            text.setLength(0);
+            break;
+          
+          default:
+            break;
+        }
+      }
     }
-    catch (IOException e)
+    catch (XMLStreamException e)
     {
-      e.printStackTrace();
+      Logger.error(e);
       return null;
     }
-    
-    // Close the input stream
-    try
-    {
-      is.close();
-    }
-    catch (IOException e)
+    finally
     {
-      e.printStackTrace();
+      if (reader != null)
+      {
+        try
+        {
+          reader.close();
+        }
+        catch (XMLStreamException e)
+        {
+          Logger.error(e);
+        }
+      }
     }
     
     return nodes;
   }
   
-//  public static void main(final String[] args)
-//  {
-//    // Parse the XML file
-//    try
-//    {
-//      SAXParserFactory factory = SAXParserFactory.newInstance();
-//      SAXParser saxParser = factory.newSAXParser();
-//      SchemaParser handler = new SchemaParser();
-//      saxParser.parse("schema.xml", handler);
-//      
-//      // Print the list, for debugging
-//      for (Node n : handler.nodes)
-//      {
-//        System.out.println(n.toString());
-//      }
-//    }
-//    catch (Exception e)
-//    {
-//      e.printStackTrace();
-//    }
-//  }
-  
   
-  @Override
-  public void startElement(final String uri, final String localName,
-                           final String qName, final Attributes attributes)
-        throws SAXException
+  /**
+   * Set the field of a node for an element that just ended.
+   * 
+   * @param node the node
+   * @param element the name of the element
+   * @param text the text of the element
+   */
+  private static void setField(final Node node, final String element, final StringBuilder text)
   {
-    // System.out.println("Start Element: " + qName);
-    
-    if (qName.equalsIgnoreCase("schema"))
-    {
-      String id = attributes.getValue("id");
-      node = new Node();
-      node.setSchema(id);
-    }
-    else if (qName.equalsIgnoreCase("node"))
-    {
-      String id = attributes.getValue("id");
-      node.setNode(id);
-    }
-    else if (qName.equalsIgnoreCase("url"))
+    if (element.equalsIgnoreCase("url"))
     {
-      inURL = true;
+      node.setUrl(trim(text));
     }
-    else if (qName.equalsIgnoreCase("id"))
+    else if (element.equalsIgnoreCase("id"))
     {
-      inID = true;
+      node.setId(trim(text));
     }
-    else if (qName.equalsIgnoreCase("pw"))
+    else if (element.equalsIgnoreCase("pw"))
     {
-      inPW = true;
+      node.setPw(trim(text));
     }
   }
   
   
-  @Override
-  public void endElement(final String uri, final String localName,
-                         final String qName)
-       throws SAXException
+  /**
+   * Return the text without leading and trailing whitespace.
+   * 
+   * @param text the text
+   * @return the trimmed text
+   */
+  private static String trim(final CharSequence text)
   {
-      // System.out.println("End Element: " + qName);
-      
-      if (qName.equalsIgnoreCase("node"))
-      {
-        Node nodeObject = new Node(node);
-        nodes.add(nodeObject);
-      }
-      else if (qName.equalsIgnoreCase("url"))
-      {
-        inURL = false;
-      }
-      else if (qName.equalsIgnoreCase("id"))
-      {
-        inID = false;
-      }
-      else if (qName.equalsIgnoreCase("pw"))
-      {
-        inPW = false;
-      }
-  }
-  
-  
-  @Override
-  public void characters(final char ch[], final int start, final int length)
-    throws SAXException
-  {
-    // Get the value
-    final String val = new String(ch, start, length).trim();
-    
-//    if (val.length() > 0)
-//    {
-//      System.out.println("Characters=>" + val + "<==");
-//    }
-    
-    if (inURL)
-    {
-      node.setUrl(val);
-    }
-    else if (inID)
+    int start = 0;
+    int end = text.length();
+    while ((start < end) && (text.charAt(start) <= ' '))
     {
-      node.setId(val);
+      ++start;
     }
-    else if (inPW)
+    
+    while ((end > start) && (text.charAt(end - 1) <= ' '))
     {
-      node.setPw(val);
+      --end;
     }
+    
+    return text.subSequence(start, end).toString();
   }
 }
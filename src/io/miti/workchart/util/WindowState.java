@@ -31,6 +31,18 @@ public final class WindowState
   private String environment = null;
   private String schema = null;
   
+  /** Whether to load all of the charts after connecting. */
+  private boolean prefetch = true;
+  
+  /** How often to refresh the chart on screen, in seconds (0 to turn it off). */
+  private int refreshSeconds = 0;
+  
+  /** The channel to listen on for changed tables (empty to turn it off). */
+  private String notifyChannel = "";
+  
+  /** How long the UI thread can be blocked before it's reported, in milliseconds (0 to turn it off). */
+  private int stallMillis = 500;
+  
   /**
    * The name of the log output file.  The names "stdout" and
    * "stderr" are not treated as file names.
@@ -215,6 +227,30 @@ public final class WindowState
   }
   
   
+  public boolean shouldPrefetch()
+  {
+    return prefetch;
+  }
+  
+  
+  public int getRefreshSeconds()
+  {
+    return refreshSeconds;
+  }
+  
+  
+  public String getNotifyChannel()
+  {
+    return notifyChannel;
+  }
+  
+  
+  public int getStallMillis()
+  {
+    return stallMillis;
+  }
+  
+  
   public String getEnvironment() {
     return environment;
   }
@@ -275,6 +311,10 @@ public final class WindowState
     prop.put("log.level", Integer.toString(logLevel));
     prop.put("log.file", logFile);
     prop.put("log.overwrite", logOverwrite ? "1" : "0");
+    prop.put("charts.prefetch", prefetch ? "1" : "0");
+    prop.put("charts.refresh.seconds", Integer.toString(refreshSeconds));
+    prop.put("charts.notify.channel", notifyChannel);
+    prop.put("ui.stall.millis", Integer.toString(stallMillis));
     
     saveStringProp(prop, "environment", environment);
     saveStringProp(prop, "schema", schema);
@@ -338,6 +378,34 @@ public final class WindowState
       ws.logOverwrite = (val.equals("1"));
     }
     
+    // Read whether to load the charts after connecting
+    val = props.getProperty("charts.prefetch");
+    if ((val != null) && (val.length() > 0))
+    {
+      ws.prefetch = (val.equals("1"));
+    }
+    
+    // Read how often to refresh the charts
+    val = props.getProperty("charts.refresh.seconds");
+    if ((val != null) && (val.length() > 0))
+    {
+      ws.refreshSeconds = Utility.getStringAsInteger(val, 0, 0);
+    }
+    
+    // Read the channel for change notifications
+    val = props.getProperty("charts.notify.channel");
+    if (val != null)
+    {
+      ws.notifyChannel = val.trim();
+    }
+    
+    // Read how long the UI thread can be blocked before it's reported
+    val = props.getProperty("ui.stall.millis");
+    if ((val != null) && (val.length() > 0))
+    {
+      ws.stallMillis = Utility.getStringAsInteger(val, 500, 500);
+    }
+    
     val = props.getProperty("environment");
     if ((val != null) && (val.length() > 0))
     {